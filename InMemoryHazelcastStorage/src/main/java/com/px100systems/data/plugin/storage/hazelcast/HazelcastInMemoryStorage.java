@@ -19,9 +19,13 @@ package com.px100systems.data.plugin.storage.hazelcast;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,11 +36,13 @@ import com.google.gson.Gson;
 import com.hazelcast.client.HazelcastClient;
 import com.hazelcast.client.config.ClientConfig;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.SerializationConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.map.AbstractEntryProcessor;
 import com.hazelcast.nio.ObjectDataInput;
 import com.hazelcast.nio.ObjectDataOutput;
 import com.hazelcast.nio.serialization.DataSerializable;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
 import com.hazelcast.util.IterationType;
 import com.px100systems.data.core.CompoundIndexDescriptor;
 import com.px100systems.data.core.EntityDescriptor;
@@ -45,10 +51,12 @@ import com.px100systems.data.plugin.persistence.PersistenceLogEntry;
 import com.px100systems.data.plugin.storage.EntityCursor;
 import com.px100systems.data.plugin.storage.InMemoryStorageLoader;
 import com.px100systems.data.plugin.storage.InMemoryStorageProvider;
+import com.px100systems.util.serialization.SerializationDefinition;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.hazelcast.core.ExecutionCallback;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
 import com.hazelcast.core.ILock;
 import com.hazelcast.core.IMap;
 import com.hazelcast.core.ITopic;
@@ -67,8 +75,10 @@ import com.px100systems.data.core.Delete;
 import com.px100systems.data.core.Entity;
 import com.px100systems.data.core.Lock;
 import com.px100systems.data.core.OrderBy;
+import com.px100systems.data.core.PartitioningStrategy;
 import com.px100systems.data.core.RawRecord;
 import com.px100systems.data.core.StoredBean;
+import com.px100systems.data.core.UnitDescriptor;
 import com.px100systems.data.plugin.persistence.PersistenceProvider;
 import com.px100systems.data.plugin.persistence.PersistenceProviderException;
 import com.px100systems.data.plugin.persistence.PersistenceProvider.Connection;
@@ -82,6 +92,7 @@ import org.springframework.beans.factory.annotation.Required;
  * <ul>
  * 	<li>config - either Hazelcast's full-node Config or ClientConfig if this is a client node.
  *  <li>maxPartitionSize (default 100000 - rarely customized) - the amount of keys (IDs) in one Hazelcast (tenant-related) partition of one storage unit (map).
+ *    Only used by entities w/o a {@link com.px100systems.data.core.Partitioning} strategy.
  *  <li>writeThrough - direct persistence provider (not persister server) for development mode (make sure normal write-behind is disabled -
  *    see {@link com.px100systems.data.core.DatabaseStorage}).
  * </ul>
@@ -95,6 +106,7 @@ import org.springframework.beans.factory.annotation.Required;
  * 	<li>All OrderBy fields should have matching OrderBy methods returning {@link OrderBy}: e.g. public static OrderBy orderByIdXyz(...) { ... } for field xyz.
  * 	  It'll work w/o those methods too using slow universal reflection-based comparators.
  * </ul>
+ * Storage keys are IdentifiedDataSerializable: standalone members need {@link InternalDataSerializableFactory} in their config.<br>
  *
  * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
  * @author Alex Rogachevsky
@@ -114,22 +126,26 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 		this.writeThrough = writeThrough;
 	}
 
-	public static class Key implements DataSerializable, Comparable<Key>, PartitionAware<String> {
+	/**
+	 * Compact storage key: the ID plus a precomputed int partition hash (16 bytes on the wire, no strings).
+	 * Equality is by ID only, since keys never mix units within a map.
+	 */
+	public static class Key implements IdentifiedDataSerializable, Comparable<Key>, PartitionAware<Integer> {
 		private long id = 0;
-	    private String partitionKey = "";
+		private int partitionHash = 0;
 
-	    @SuppressWarnings("unused")
+		@SuppressWarnings("unused")
 		public Key() {
-	    }
+		}
 
-	    public Key(Long id, String unitName, long maxPartitionSize) {
+		public Key(long id, int partitionHash) {
 			this.id = id;
-			this.partitionKey = unitName + (id > maxPartitionSize ? id % maxPartitionSize : "");
+			this.partitionHash = partitionHash;
 		}
 
 		@Override
 		public int hashCode() {
-			return new Long(id).hashCode();
+			return (int)(id ^ (id >>> 32));
 		}
 
 		@Override
@@ -138,13 +154,13 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 		}
 
 		@Override
-	    public String toString() {
-	        return id + "." + partitionKey;
-	    }
+		public String toString() {
+			return id + "." + partitionHash;
+		}
 
 		@Override
-		public String getPartitionKey() {
-			return partitionKey;
+		public Integer getPartitionKey() {
+			return partitionHash;
 		}
 
 		@SuppressWarnings("NullableProblems")
@@ -152,22 +168,32 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 		public int compareTo(Key o) {
 			if (o == null)
 				return 1;
-			return new Long(id).compareTo(o.id);
+			return Long.compare(id, o.id);
+		}
+
+		@Override
+		public int getFactoryId() {
+			return InternalDataSerializableFactory.FACTORY_ID;
+		}
+
+		@Override
+		public int getId() { // IdentifiedDataSerializable class ID, not the entity ID
+			return InternalDataSerializableFactory.KEY;
 		}
 
 		@Override
 		public void writeData(ObjectDataOutput out) throws IOException {
 			out.writeLong(id);
-			out.writeUTF(partitionKey);
+			out.writeInt(partitionHash);
 		}
 
 		@Override
 		public void readData(ObjectDataInput in) throws IOException {
 			id = in.readLong();
-			partitionKey = in.readUTF();
+			partitionHash = in.readInt();
 		}
 	}
-	
+
 	public static class MemberPropertyTask implements Callable<String>, DataSerializable {
 		private String property = null;
 
@@ -258,7 +284,7 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 
 	@SuppressWarnings("unused")
 	public void getMemberProperty(String unitName, Long id, String property, ExecutionCallback<String> callback) {
-		hz.getExecutorService("default").submitToKeyOwner(new MemberPropertyTask(property), new Key(id, unitName, maxPartitionSize), callback);
+		hz.getExecutorService("default").submitToKeyOwner(new MemberPropertyTask(property), key(id, unitName), callback);
 	}
 
 	@Override
@@ -280,13 +306,60 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 
 	@Override
 	public void start() {
+		UnitDescriptor.resetHandles();
+
+		SerializationConfig serializationConfig = config instanceof ClientConfig ? ((ClientConfig)config).getSerializationConfig() :
+			((Config)config).getSerializationConfig();
+		if (!serializationConfig.getDataSerializableFactories().containsKey(InternalDataSerializableFactory.FACTORY_ID) &&
+				!serializationConfig.getDataSerializableFactoryClasses().containsKey(InternalDataSerializableFactory.FACTORY_ID))
+			serializationConfig.addDataSerializableFactory(InternalDataSerializableFactory.FACTORY_ID, new InternalDataSerializableFactory());
+
 		hz = config instanceof ClientConfig ? HazelcastClient.newHazelcastClient((ClientConfig)config) :
 			Hazelcast.newHazelcastInstance((Config)config);
 	}
 
+	private Key key(Long id, String unitName) {
+		UnitDescriptor unit = UnitDescriptor.get(unitName).getAffinityUnit();
+		unitName = unit.getName();
+
+		PartitioningStrategy strategy = unit.getPartitioningStrategy();
+		if (strategy != null)
+			return new Key(id, strategy.partitionHash(unit, id));
+
+		int partitionHash = unitName.hashCode();
+		if (id > maxPartitionSize)
+			partitionHash = 31 * partitionHash + (int)(id % maxPartitionSize);
+		return new Key(id, partitionHash);
+	}
+
+	/**
+	 * Cached map proxy - Hazelcast's getMap() is a name lookup in the proxy registry.
+	 */
+	@SuppressWarnings("unchecked")
+	private <K, V> IMap<K, V> map(String unitName) {
+		UnitDescriptor unit = UnitDescriptor.get(unitName);
+		IMap<K, V> result = unit.getStorageHandle();
+		if (result == null) {
+			result = hz.getMap(unit.getStorageName());
+			unit.setStorageHandle(result);
+		}
+		return result;
+	}
+
+	private IAtomicLong idGenerator(String unitName) {
+		UnitDescriptor unit = UnitDescriptor.get(unitName);
+		IAtomicLong result = unit.getIdGeneratorHandle();
+		if (result == null) {
+			result = hz.getAtomicLong("IDgen_" + unit.getStorageName());
+			unit.setIdGeneratorHandle(result);
+		}
+		return result;
+	}
+
 	@Override
 	public void createMap(Class<?> cls, String unitName, Map<String, Class<?>> indexFields, List<CompoundIndexDescriptor> compoundIndexes, boolean transientData) {
-		IMap<Key, StoredBean> map = hz.getMap(unitName);
+		UnitDescriptor.register(unitName);
+		IMap<Key, StoredBean> map = map(unitName);
 
 		for (String indexField : indexFields.keySet()) {
 			boolean ordered = false;
@@ -303,12 +376,22 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 	@Override
 	public void createIdGenerator(String unitName, long value) {
 		log.info("Initialized ID generator '" + unitName + "' with " + value);
-		hz.getAtomicLong("IDgen_" + unitName).set(value);
+		idGenerator(unitName).set(value);
 	}
 
 	@Override
 	public long generateId(String unitName) {
-		return hz.getAtomicLong("IDgen_" + unitName).incrementAndGet();
+		return idGenerator(unitName).incrementAndGet();
+	}
+
+	@Override
+	public long generateIds(String unitName, int count) {
+		return idGenerator(unitName).addAndGet(count);
+	}
+
+	@Override
+	public long getLastId(String unitName) {
+		return idGenerator(unitName).get();
 	}
 
 	public static class HzLock implements Lock {
@@ -354,33 +437,76 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 		return hz.getAtomicLong(name + "@long" + tenantId).decrementAndGet();
 	}
 
+	@Override
+	public boolean compareAndSetAtomicLong(String name, Integer tenantId, long expect, long update) {
+		return hz.getAtomicLong(name + "@long" + tenantId).compareAndSet(expect, update);
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T get(String unitName, Long id) {
-		return (T)hz.getMap(unitName).get(new Key(id, unitName, maxPartitionSize));
+		return (T)map(unitName).get(key(id, unitName));
+	}
+
+	@Override
+	public <T> Map<Long, T> getAll(String unitName, Collection<Long> ids) {
+		Set<Key> keys = new HashSet<>();
+		for (Long id : ids)
+			keys.add(key(id, unitName));
+
+		IMap<Key, T> map = map(unitName);
+		Map<Long, T> result = new HashMap<>();
+		for (Map.Entry<Key, T> e : map.getAll(keys).entrySet())
+			result.put(e.getKey().id, e.getValue());
+		return result;
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T get(String unitName, Object key) {
-		return (T)hz.getMap(unitName).get(key);
+		return (T)map(unitName).get(key);
 	}
 
 	@Override
 	public void save(String unitName, Object key, Object bean) {
-		hz.getMap(unitName).put(key, bean);
+		map(unitName).put(key, bean);
 	}
 
 	@Override
 	public void delete(String unitName, Object key) {
-		hz.getMap(unitName).delete(key);
+		map(unitName).delete(key);
 	}
 
 	@Override
 	public <T> void deleteAll(String unitName, Class<T> cls, Criteria criteria) {
-		IMap<Object, T> map = hz.getMap(unitName);
-		for (Object key : map.keySet(criteria.convert(new PredicateQueryBuilder(cls))))
-			map.delete(key);
+		IMap<Object, T> map = map(unitName);
+		map.executeOnEntries(new HzRemovingProcessor<>(HzRemovingProcessor.RETURN_NOTHING), criteria.convert(new PredicateQueryBuilder(cls)));
+	}
+
+	/**
+	 * Member-side bulk delete (executeOnEntries with a predicate): returns the removed value, just TRUE to collect keys, or nothing.
+	 */
+	public static class HzRemovingProcessor<K> extends AbstractEntryProcessor<K, Object> {
+		public static final int RETURN_NOTHING = 0;
+		public static final int RETURN_KEY = 1;
+		public static final int RETURN_OLD_VALUE = 2;
+
+		private int mode;
+
+		@SuppressWarnings("unused")
+		public HzRemovingProcessor() {
+		}
+
+		public HzRemovingProcessor(int mode) {
+			this.mode = mode;
+		}
+
+		@Override
+		public Object process(Map.Entry<K, Object> entry) {
+			Object value = entry.getValue();
+			entry.setValue(null);
+			return mode == RETURN_OLD_VALUE ? value : mode == RETURN_KEY ? Boolean.TRUE : null;
+		}
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
@@ -396,7 +522,7 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 		Comparator<Map.Entry> orderByComparator = orderBy == null || orderBy.isEmpty() ? new SearchComparator() : new OrderByComparator(ob(cls, orderBy));
 		Predicate<Key, StoredBean> filter = criteria == null ? null : criteria.convert(new PredicateQueryBuilder(cls));
 
-		IMap<Key, T> map = hz.getMap(unitName);
+		IMap<Key, T> map = map(unitName);
 		PagingPredicate predicate = criteria == null ? new PagingPredicate(orderByComparator, limit) : new PagingPredicate(filter, orderByComparator, limit);
 		predicate.setIterationType(IterationType.VALUE);
 		return new ArrayList<T>(map.values(predicate));
@@ -408,7 +534,7 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 		Comparator<Map.Entry> orderByComparator = orderBy == null || orderBy.isEmpty() ? new SearchComparator() : new OrderByComparator(ob(cls, orderBy));
 		Predicate<Key, StoredBean> filter = criteria == null ? null : criteria.convert(new PredicateQueryBuilder(cls));
 
-		IMap<Key, T> map = hz.getMap(unitName);
+		IMap<Key, T> map = map(unitName);
 		PagingPredicate predicate = criteria == null ? new PagingPredicate(orderByComparator, 50) : new PagingPredicate(filter, orderByComparator, 50);
 		predicate.setIterationType(IterationType.VALUE);
 		return new ResultIterator<T>(predicate, map);
@@ -490,9 +616,9 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 	@Override
 	public long count(String unitName, Class<?> cls, Criteria criteria) {
 		if (criteria == null)
-			return hz.getMap(unitName).size();
+			return map(unitName).size();
 		
-		IMap<Key, StoredBean> map = hz.getMap(unitName);
+		IMap<Key, StoredBean> map = map(unitName);
 		PagingPredicate predicate = new PagingPredicate(criteria.convert(new PredicateQueryBuilder(cls)), 50);
 		predicate.setIterationType(IterationType.KEY);
 		
@@ -506,34 +632,156 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 
 	@Override
 	public <T> List<T>  getAll(String unitName, Class<T> cls, Criteria criteria) {
-		IMap<?, T> map = hz.getMap(unitName);
+		IMap<?, T> map = map(unitName);
 		return new ArrayList<T>(criteria == null ? map.values() : map.values(criteria.convert(new PredicateQueryBuilder(cls))));
 	}
 
+	/**
+	 * In-place update processor. Never throws: returns the error message (String) instead, so one failed key doesn't hide
+	 * the rollback images of the keys already updated by the same executeOnKeys() call.
+	 * Otherwise returns the rollback image (the entity before the update) if requested, or TRUE.
+	 */
 	public static class HzEntryProcessor extends AbstractEntryProcessor<Key, Object> {
 		private InPlaceUpdate<?> u;
+		private boolean returnOldValue;
 
 		@SuppressWarnings("unused")
 		public HzEntryProcessor() {
 		}
 
-		public HzEntryProcessor(InPlaceUpdate<?> u) {
+		public HzEntryProcessor(InPlaceUpdate<?> u, boolean returnOldValue) {
 			this.u = u;
+			this.returnOldValue = returnOldValue;
 		}
 
 		@Override
 		public Object process(Map.Entry<Key, Object> entry) {
-			Object value = entry.getValue();
-			u.eval(value);
-			entry.setValue(value);
-			return value;
+			try {
+				Object value = entry.getValue();
+				Object oldValue = returnOldValue && value != null ? SerializationDefinition.get(value.getClass()).clone(value) : null;
+				u.eval(value);
+				entry.setValue(value);
+				return oldValue != null ? oldValue : Boolean.TRUE;
+			} catch (Throwable e) {
+				return "In-place update of " + entry.getKey() + " failed: " + e;
+			}
 		}
 	}
 
+	private static class RollbackImage {
+		private IMap<Key, Object> map;
+		private Key key;
+		private Object value;
+
+		public RollbackImage(IMap<Key, Object> map, Key key, Object value) {
+			this.map = map;
+			this.key = key;
+			this.value = value;
+		}
+
+		public void restore() {
+			if (value != null)
+				map.set(key, value);
+			else
+				map.delete(key);
+		}
+	}
+
+	private static void rollback(List<RollbackImage> images) {
+		for (RollbackImage image : images)
+			try {
+				image.restore();
+			} catch (Throwable e) {
+				log.error("Couldn't restore " + image.key + " in " + image.map.getName(), e);
+			}
+	}
+
+	/**
+	 * Non-transactional in-place updates grouped by unit and processor - see {@link InPlaceUpdate#batches}. Criteria-based ones use executeOnEntries().
+	 * Rollback images are captured by the processor itself unless it is a standalone update that has nothing to roll back.
+	 * So a standalone criteria-based update only brings keys back, and a failure leaves already processed entries updated.
+	 */
+	private void inPlaceUpdates(List<InPlaceUpdate<?>> inPlaceUpdates, boolean rollbackRequired, List<RollbackImage> images) {
+		for (List<InPlaceUpdate<?>> batch : InPlaceUpdate.batches(inPlaceUpdates)) {
+			InPlaceUpdate<?> u = batch.get(0);
+			IMap<Key, Object> map = map(u.getUnitName());
+
+			Map<Key, Object> results;
+			if (u.getCriteria() != null) {
+				Predicate<Key, StoredBean> predicate = u.getCriteria().convert(new PredicateQueryBuilder(u.getCls()));
+				results = map.executeOnEntries(new HzEntryProcessor(u, rollbackRequired), predicate);
+
+				long[] ids = new long[results.size()];
+				int i = 0;
+				for (Map.Entry<Key, Object> e : results.entrySet())
+					if (!(e.getValue() instanceof String))
+						ids[i++] = e.getKey().id;
+				u.setAffectedIds(Arrays.copyOf(ids, i));
+			} else if (batch.size() == 1) {
+				Key key = key(u.getId(), u.getUnitName());
+				results = Collections.singletonMap(key, map.executeOnKey(key, new HzEntryProcessor(u, rollbackRequired)));
+			} else {
+				Set<Key> keys = new HashSet<>();
+				for (InPlaceUpdate<?> update : batch)
+					keys.add(key(update.getId(), update.getUnitName()));
+				results = map.executeOnKeys(keys, new HzEntryProcessor(u, rollbackRequired));
+			}
+
+			String error = null;
+			for (Map.Entry<Key, Object> e : results.entrySet())
+				if (e.getValue() instanceof String)
+					error = (String)e.getValue();
+				else if (rollbackRequired)
+					images.add(new RollbackImage(map, e.getKey(), e.getValue() == Boolean.TRUE ? null : e.getValue()));
+			if (error != null)
+				throw new RuntimeException(error);
+		}
+	}
+
+	/**
+	 * Member-side criteria deletes: a fast path for commits consisting of criteria deletes only (and service data e.g. the persistence log purge).
+	 * It is NOT transactional: entries are removed partition by partition, other transactions see them gone right away,
+	 * and a failure leaves the already removed ones removed. Commits with anything else (including write-through) delete in the grid transaction.
+	 */
+	private static boolean memberSideDeletesOnly(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes,
+												 List<InPlaceUpdate<?>> inPlaceUpdates, boolean serviceData, boolean writeThrough) {
+		if (deletes.isEmpty() || !inserts.isEmpty() || !updates.isEmpty() || !inPlaceUpdates.isEmpty() || (writeThrough && !serviceData))
+			return false;
+
+		for (Delete delete : deletes)
+			if (delete.getId() != null || delete.getCriteria() == null)
+				return false;
+		return true;
+	}
+
+	private List<EntityDescriptor> memberSideDeletes(List<Delete> deletes, boolean serviceData) {
+		List<EntityDescriptor> result = new ArrayList<>();
+		for (Delete delete : deletes) {
+			IMap<Key, Object> map = map(delete.getUnitName());
+			Predicate<Key, StoredBean> predicate = delete.getCriteria().convert(new PredicateQueryBuilder(delete.getEntityClass()));
+			if (serviceData) {
+				map.executeOnEntries(new HzRemovingProcessor<Key>(HzRemovingProcessor.RETURN_NOTHING), predicate);
+				continue;
+			}
+
+			Map<Key, Object> removed = map.executeOnEntries(new HzRemovingProcessor<Key>(HzRemovingProcessor.RETURN_KEY), predicate);
+			long[] ids = new long[removed.size()];
+			int i = 0;
+			for (Key key : removed.keySet())
+				ids[i++] = key.id;
+			if (ids.length > 0)
+				result.add(new EntityDescriptor(delete.getEntityClass(), delete.getUnitName(), ids));
+		}
+		return result;
+	}
+
 	@Override
 	public List<EntityDescriptor> save(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes, List<InPlaceUpdate<?>> inPlaceUpdates,
 									   boolean serviceData) throws DataStorageException {
-		List<StoredBean> inPlaceEntities = new ArrayList<>();
+		if (memberSideDeletesOnly(inserts, updates, deletes, inPlaceUpdates, serviceData, writeThrough != null))
+			return memberSideDeletes(deletes, serviceData);
+
+		List<RollbackImage> images = new ArrayList<>();
 		if (!inPlaceUpdates.isEmpty()) {
 			int lastUpdate = inPlaceUpdates.get(inPlaceUpdates.size() - 1).getOperationOrderNo();
 			if ((!inserts.isEmpty() && inserts.get(0).getOperationOrderNo() < lastUpdate) ||
@@ -542,17 +790,9 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 				throw new RuntimeException("Hazelcast implies that all non-transactional in-place updates happen before conventional operations");
 
 			try {
-				for (final InPlaceUpdate<?> u : inPlaceUpdates) {
-					IMap<Key, Object> map = hz.getMap(u.getUnitName());
-					Key key = new Key(u.getId(), u.getUnitName(), maxPartitionSize);
-					inPlaceEntities.add((StoredBean)map.get(key));
-					map.executeOnKey(key, new HzEntryProcessor(u));
-				}
+				inPlaceUpdates(inPlaceUpdates, inPlaceUpdates.size() > 1 || !inserts.isEmpty() || !updates.isEmpty() || !deletes.isEmpty(), images);
 			} catch (Throwable e) {
-				for (int i = 0, n = inPlaceEntities.size(); i < n; i++) {
-					InPlaceUpdate<?> u = inPlaceUpdates.get(i);
-					save(u.getUnitName(), u.getId(), inPlaceEntities.get(i));
-				}
+				rollback(images);
 				throw new RuntimeException(e);
 			}
 		}
@@ -566,28 +806,28 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 			for (StoredBean bean : inserts) {
 				String unitName = bean.unitName();
 				if (!maps.containsKey(unitName)) {
-					TransactionalMap<Key, StoredBean> map = context.getMap(unitName); 
+					TransactionalMap<Key, StoredBean> map = context.getMap(UnitDescriptor.get(unitName).getStorageName());
 					maps.put(unitName, map);
 				}
 			}
 			for (StoredBean bean : updates) {
 				String unitName = bean.unitName();
 				if (!maps.containsKey(unitName)) {
-					TransactionalMap<Key, StoredBean> map = context.getMap(unitName); 
+					TransactionalMap<Key, StoredBean> map = context.getMap(UnitDescriptor.get(unitName).getStorageName());
 					maps.put(unitName, map);
 				}
 			}
 			for (Delete delete : deletes) {
 				String unitName = delete.getUnitName();
 				if (!maps.containsKey(unitName)) {
-					TransactionalMap<Key, StoredBean> map = context.getMap(unitName); 
+					TransactionalMap<Key, StoredBean> map = context.getMap(UnitDescriptor.get(unitName).getStorageName());
 					maps.put(unitName, map);
 				}
 			}
 			
 			for (StoredBean bean : inserts) {
 				TransactionalMap<Key, StoredBean> map = maps.get(bean.unitName());
-				Key key = new Key(bean.getId(), bean.unitName(), maxPartitionSize);
+				Key key = key(bean.getId(), bean.unitName());
 				if (map.containsKey(key))
 					throw new RuntimeException("Bad ID generator");
 				map.set(key, bean);
@@ -595,7 +835,7 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 
 			for (StoredBean bean : updates) {
 				TransactionalMap<Key, StoredBean> map = maps.get(bean.unitName());
-				Key key = new Key(bean.getId(), bean.unitName(), maxPartitionSize);
+				Key key = key(bean.getId(), bean.unitName());
 				if (map.containsKey(key))
 					map.set(key, bean);
 				else
@@ -610,12 +850,18 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 				TransactionalMap<Key, StoredBean> map = maps.get(delete.getUnitName());
 				if (delete.getId() != null) {
 					result.add(new EntityDescriptor(delete.getEntityClass(), delete.getId(), delete.getUnitName()));
-					map.delete(new Key(delete.getId(), delete.getUnitName(), maxPartitionSize));
-				} else
-					for (Key key : map.keySet(delete.getCriteria().convert(new PredicateQueryBuilder(delete.getEntityClass())))) {
-						result.add(new EntityDescriptor(delete.getEntityClass(), key.id, delete.getUnitName()));
+					map.delete(key(delete.getId(), delete.getUnitName()));
+				} else {
+					Set<Key> keys = map.keySet(delete.getCriteria().convert(new PredicateQueryBuilder(delete.getEntityClass())));
+					long[] ids = new long[keys.size()];
+					int i = 0;
+					for (Key key : keys) {
+						ids[i++] = key.id;
 						map.delete(key);
 					}
+					if (ids.length > 0)
+						result.add(new EntityDescriptor(delete.getEntityClass(), delete.getUnitName(), ids));
+				}
 			}
 
 			if (writeThrough != null && !serviceData) {
@@ -641,17 +887,11 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 			return result;
 		} catch (DataStorageException e) {
 		    context.rollbackTransaction();
-			for (int i = 0, n = inPlaceEntities.size(); i < n; i++) {
-				InPlaceUpdate<?> u = inPlaceUpdates.get(i);
-				save(u.getUnitName(), u.getId(), inPlaceEntities.get(i));
-			}
+			rollback(images);
 			throw e;
 		} catch (Throwable e) {
 		    context.rollbackTransaction();
-			for (int i = 0, n = inPlaceEntities.size(); i < n; i++) {
-				InPlaceUpdate<?> u = inPlaceUpdates.get(i);
-				save(u.getUnitName(), u.getId(), inPlaceEntities.get(i));
-			}
+			rollback(images);
 		    throw new RuntimeException(e);
 		}
 	}
@@ -668,14 +908,24 @@ public class HazelcastInMemoryStorage implements InMemoryStorageProvider {
 
 			@Override
 			public void store(List<StoredBean> inserts) {
+				Map<String, Map<Key, StoredBean>> batches = new HashMap<>();
 				for (StoredBean entity : inserts) {
 					String unitName = entity.unitName();
-					IMap<Key, StoredBean> map = maps.get(unitName);
+					Map<Key, StoredBean> batch = batches.get(unitName);
+					if (batch == null) {
+						batch = new HashMap<>();
+						batches.put(unitName, batch);
+					}
+					batch.put(key(entity.getId(), unitName), entity);
+				}
+
+				for (Map.Entry<String, Map<Key, StoredBean>> e : batches.entrySet()) {
+					IMap<Key, StoredBean> map = maps.get(e.getKey());
 					if (map == null) {
-						map = hz.getMap(unitName);
-						maps.put(unitName, map);
+						map = map(e.getKey());
+						maps.put(e.getKey(), map);
 					}
-					map.set(new Key(entity.getId(), unitName, maxPartitionSize), entity);
+					map.putAll(e.getValue());
 				}
 			}
 
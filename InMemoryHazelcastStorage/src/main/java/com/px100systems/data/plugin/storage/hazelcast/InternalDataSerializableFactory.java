@@ -0,0 +1,45 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.plugin.storage.hazelcast;
+
+import com.hazelcast.nio.serialization.DataSerializableFactory;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * IdentifiedDataSerializable factory for the framework's own Hazelcast classes (currently the storage key).<br>
+ * Registered automatically by {@link HazelcastInMemoryStorage} on its own (client or member) config.
+ * Standalone cluster members (started outside of the framework) need it in their serializationConfig/dataSerializableFactories
+ * under the {@link #FACTORY_ID} key - like {@link CustomPortableFactory} for portables.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class InternalDataSerializableFactory implements DataSerializableFactory {
+	public static final int FACTORY_ID = 1000;
+
+	public static final int KEY = 1;
+
+	@Override
+	public IdentifiedDataSerializable create(int typeId) {
+		switch (typeId) {
+			case KEY:
+				return new HazelcastInMemoryStorage.Key();
+			default:
+				return null;
+		}
+	}
+}
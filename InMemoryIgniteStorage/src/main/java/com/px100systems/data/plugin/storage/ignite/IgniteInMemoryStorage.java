@@ -25,8 +25,10 @@ import com.px100systems.data.core.Entity;
 import com.px100systems.data.core.EntityDescriptor;
 import com.px100systems.data.core.InPlaceUpdate;
 import com.px100systems.data.core.Lock;
+import com.px100systems.data.core.PartitioningStrategy;
 import com.px100systems.data.core.RawRecord;
 import com.px100systems.data.core.StoredBean;
+import com.px100systems.data.core.UnitDescriptor;
 import com.px100systems.data.plugin.persistence.PersistenceLogEntry;
 import com.px100systems.data.plugin.persistence.PersistenceProvider;
 import com.px100systems.data.plugin.persistence.PersistenceProviderException;
@@ -36,6 +38,7 @@ import com.px100systems.data.plugin.storage.InMemoryStorageProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteAtomicLong;
 import org.apache.ignite.IgniteCache;
 import org.apache.ignite.IgniteCountDownLatch;
 import org.apache.ignite.IgniteDataStreamer;
@@ -58,8 +61,11 @@ import org.apache.ignite.transactions.Transaction;
 import org.springframework.beans.factory.annotation.Required;
 import javax.cache.Cache;
 import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
 import javax.cache.processor.MutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -70,6 +76,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
 
 /**
  * Distributed Ignite in-memory storage provider. See {@link InMemoryStorageProvider}.<br>
@@ -78,7 +85,8 @@ import java.util.concurrent.TimeUnit;
  * <b>Configuration:</b><br>
  * <ul>
  *   <li>config - Ignite config bean
- *   <li>maxPartitionSize (default 100000 - rarely customized) - the amount of keys (IDs) in one Ignite (tenant-related) partition of one storage unit (map)
+ *   <li>maxPartitionSize (default 100000 - rarely customized) - the amount of keys (IDs) in one Ignite (tenant-related) partition of one storage unit (map).
+ *     Only used by entities w/o a {@link com.px100systems.data.core.Partitioning} strategy.
  *   <li>offHeap - off-heap memory (JVM memory limits still apply). Use with caution due to some cache entry corruption (Boolean instead of the entity, etc.)
  *   <li>writeThrough - direct persistence provider (not persister server) for development mode (make sure normal write-behind is disabled -
  *      see {@link com.px100systems.data.core.DatabaseStorage}).
@@ -101,6 +109,7 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings("JavadocReference")
 public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 	private static Log log = LogFactory.getLog(IgniteInMemoryStorage.class);
+	private static final int KEY_BATCH_SIZE = 1000;
 
 	private IgniteConfiguration config;
 	private Ignite ignite;
@@ -130,8 +139,19 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 		this.offHeap = offHeap;
 	}
 
+	/**
+	 * Affinity: the (interned) unit name, or an int partition hash for large IDs and custom partitioning - no per-key strings
+	 */
 	private AffinityKey<Long> key(Long id, String unitName) {
-		return new AffinityKey<>(id, unitName + (id > maxPartitionSize ? id % maxPartitionSize : ""));
+		UnitDescriptor unit = UnitDescriptor.get(unitName).getAffinityUnit();
+
+		PartitioningStrategy strategy = unit.getPartitioningStrategy();
+		if (strategy != null)
+			return new AffinityKey<>(id, strategy.partitionHash(unit, id));
+
+		if (id <= maxPartitionSize)
+			return new AffinityKey<>(id, unit.getName());
+		return new AffinityKey<>(id, 31 * unit.getName().hashCode() + (int)(id % maxPartitionSize));
 	}
 
 	@Override
@@ -153,17 +173,43 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 
 	@Override
 	public void start() {
+		UnitDescriptor.resetHandles();
 		ignite = Ignition.start(config);
 	}
 
+	/**
+	 * Cached cache proxy - Ignite's cache() is a name lookup (and a proxy allocation) every time.
+	 */
+	private <K, V> IgniteCache<K, V> cache(String unitName) {
+		UnitDescriptor unit = UnitDescriptor.get(unitName);
+		IgniteCache<K, V> result = unit.getStorageHandle();
+		if (result == null) {
+			result = ignite.cache(unit.getStorageName());
+			if (result != null)
+				unit.setStorageHandle(result);
+		}
+		return result;
+	}
+
+	private IgniteAtomicLong idGenerator(String unitName) {
+		UnitDescriptor unit = UnitDescriptor.get(unitName);
+		IgniteAtomicLong result = unit.getIdGeneratorHandle();
+		if (result == null) {
+			result = ignite.atomicLong("IDgen_" + unit.getStorageName(), 0, true);
+			unit.setIdGeneratorHandle(result);
+		}
+		return result;
+	}
+
 	@Override
 	public void createMap(Class<?> cls, String unitName, Map<String, Class<?>> indexedFields, List<CompoundIndexDescriptor> compoundIndexes, boolean transientData) {
-		IgniteCache<AffinityKey<Long>, ?> cache = ignite.cache(unitName);
+		UnitDescriptor.register(unitName);
+		IgniteCache<AffinityKey<Long>, ?> cache = cache(unitName);
 		if (cache != null)
 			return;
 
 		CacheConfiguration<AffinityKey<Long>, ?> cacheConfig = new CacheConfiguration<>();
-		cacheConfig.setName(unitName);
+		cacheConfig.setName(UnitDescriptor.get(unitName).getStorageName());
 		cacheConfig.setCacheMode(CacheMode.PARTITIONED);
 		cacheConfig.setBackups(config.getAtomicConfiguration().getBackups());
 		cacheConfig.setAtomicityMode(transientData ? CacheAtomicityMode.ATOMIC : CacheAtomicityMode.TRANSACTIONAL);
@@ -226,12 +272,28 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 
 	@Override
 	public <T> T get(String unitName, Long id) {
-		IgniteCache<AffinityKey<Long>, T> cache = ignite.cache(unitName);
+		IgniteCache<AffinityKey<Long>, T> cache = cache(unitName);
 		if (cache == null)
 			throw new RuntimeException("Map not found: " + unitName);
 		return cache.get(key(id, unitName));
 	}
 
+	@Override
+	public <T> Map<Long, T> getAll(String unitName, Collection<Long> ids) {
+		IgniteCache<AffinityKey<Long>, T> cache = cache(unitName);
+		if (cache == null)
+			throw new RuntimeException("Map not found: " + unitName);
+
+		Set<AffinityKey<Long>> keys = new HashSet<>();
+		for (Long id : ids)
+			keys.add(key(id, unitName));
+
+		Map<Long, T> result = new HashMap<>();
+		for (Map.Entry<AffinityKey<Long>, T> e : cache.getAll(keys).entrySet())
+			result.put(e.getKey().key(), e.getValue());
+		return result;
+	}
+
 	@Override
 	public <T> T get(String unitName, Object key) {
 		IgniteCache<Object, T> cache = getOrCreateTransientMap(unitName, true);
@@ -252,21 +314,88 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 
 	@Override
 	public <T> void deleteAll(String unitName, Class<T> cls, Criteria criteria) {
-		IgniteCache<Object, T> cache = ignite.cache(unitName);
+		IgniteCache<Object, T> cache = cache(unitName);
 		if (cache == null)
 			throw new RuntimeException("Map not found: " + unitName);
 
-		Set<Object> keys = new HashSet<>();
-		QueryCursor<Cache.Entry<Object, T>> cursor = cache.query(new SqlQuery<Object, T>(cls, "FROM " + cls.getSimpleName() + " WHERE " +
+		deleteAll(cache, cls, criteria, false);
+	}
+
+	/**
+	 * Criteria-based in-place update: streams matching keys and invokes the processor on them in batches.
+	 * Only entities actually updated are reported (not those deleted after matching). Any failure is thrown to roll the transaction back.
+	 * @return updated IDs
+	 */
+	private long[] updateAll(IgniteCache<AffinityKey<Long>, StoredBean> cache, InPlaceUpdate<?> update) {
+		LongStream.Builder ids = LongStream.builder();
+		EntryUpdater updater = new EntryUpdater(update);
+		Set<AffinityKey<Long>> batch = new HashSet<>();
+		QueryCursor<List<?>> cursor = cache.query(new SqlFieldsQuery("SELECT _key FROM " + update.getCls().getSimpleName() + " WHERE " +
+			update.getCriteria().convert(new PredicateQueryBuilder())));
+		try {
+			for (Iterator<List<?>> i = cursor.iterator(); i.hasNext(); ) {
+				@SuppressWarnings("unchecked")
+				AffinityKey<Long> key = (AffinityKey<Long>)i.next().get(0);
+				batch.add(key);
+
+				if (batch.size() >= KEY_BATCH_SIZE) {
+					updated(cache.invokeAll(batch, updater), ids);
+					batch.clear();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (!batch.isEmpty())
+			updated(cache.invokeAll(batch, updater), ids);
+		return ids.build().toArray();
+	}
+
+	/**
+	 * Collects IDs of updated entities: those the processor reported (see EntryUpdater). Failures are rethrown.
+	 */
+	private static void updated(Map<AffinityKey<Long>, EntryProcessorResult<Object>> results, LongStream.Builder ids) {
+		for (Map.Entry<AffinityKey<Long>, EntryProcessorResult<Object>> e : results.entrySet())
+			if (e.getValue().get() != null)
+				ids.add(e.getKey().key());
+	}
+
+	/**
+	 * Streams matching keys (not entries) and removes them in batches, so there is never a huge key set on the caller.
+	 * @return deleted IDs if requested
+	 */
+	@SuppressWarnings("unchecked")
+	private <K> long[] deleteAll(IgniteCache<K, ?> cache, Class<?> cls, Criteria criteria, boolean collectIds) {
+		long[] ids = new long[0];
+		int count = 0;
+
+		Set<K> batch = new HashSet<>();
+		QueryCursor<List<?>> cursor = cache.query(new SqlFieldsQuery("SELECT _key FROM " + cls.getSimpleName() + " WHERE " +
 			criteria.convert(new PredicateQueryBuilder())));
 		try {
-			for (Iterator<Cache.Entry<Object, T>> i = cursor.iterator(); i.hasNext(); )
-				keys.add(i.next().getKey());
+			for (Iterator<List<?>> i = cursor.iterator(); i.hasNext(); ) {
+				K key = (K)i.next().get(0);
+				batch.add(key);
+
+				if (collectIds) {
+					if (count == ids.length)
+						ids = Arrays.copyOf(ids, Math.max(16, count * 2));
+					ids[count++] = ((AffinityKey<Long>)key).key();
+				}
+
+				if (batch.size() >= KEY_BATCH_SIZE) {
+					cache.removeAll(batch);
+					batch.clear();
+				}
+			}
 		} finally {
 			cursor.close();
 		}
 
-		cache.removeAll(keys);
+		if (!batch.isEmpty())
+			cache.removeAll(batch);
+		return Arrays.copyOf(ids, count);
 	}
 
 	public static class IgniteQueryIterator<T> implements Iterator<T> {
@@ -311,7 +440,7 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 			query.setPageSize(limit);
 
 		@SuppressWarnings("ConstantConditions")
-		QueryCursor<Cache.Entry<Object, T>> cursor = ignite.cache(unitName).query(query);
+		QueryCursor<Cache.Entry<Object, T>> cursor = cache(unitName).query(query);
 		try {
 			for (Iterator<Cache.Entry<Object, T>> i = cursor.iterator(); i.hasNext(); )
 				result.add(i.next().getValue());
@@ -340,7 +469,7 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 		final SqlQuery<Object, T> query = new SqlQuery<Object, T>(cls, sql);
 		return new EntityCursor<T>() {
 			@SuppressWarnings("ConstantConditions")
-			private QueryCursor<Cache.Entry<Object, T>> cursor = ignite.cache(unitName).query(query);
+			private QueryCursor<Cache.Entry<Object, T>> cursor = cache(unitName).query(query);
 
 			@Override
 			public Iterator<T> iterator() {
@@ -357,7 +486,7 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 	@Override
 	public <T> List<T> getAll(String unitName, Class<T> cls, Criteria criteria) {
 		if (criteria == null) {
-			IgniteCache<Object, T> cache = ignite.cache(unitName);
+			IgniteCache<Object, T> cache = cache(unitName);
 			if (cache == null)
 				throw new RuntimeException("Map not found: " + unitName);
 
@@ -373,7 +502,7 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 
 	@Override
 	public long count(String unitName, Class<?> cls, Criteria criteria) {
-		IgniteCache<?, ?> cache = ignite.cache(unitName);
+		IgniteCache<?, ?> cache = cache(unitName);
 		if (cache == null)
 			throw new RuntimeException("Map not found: " + unitName);
 
@@ -391,12 +520,22 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 	@Override
 	public void createIdGenerator(String unitName, long value) {
 		log.info("Initialized ID generator '" + unitName + "' with " + value);
-		ignite.atomicLong("IDgen_" + unitName, value, true);
+		ignite.atomicLong("IDgen_" + UnitDescriptor.get(unitName).getStorageName(), value, true);
 	}
 
 	@Override
 	public long generateId(String unitName) {
-		return ignite.atomicLong("IDgen_" + unitName, 0, true).incrementAndGet();
+		return idGenerator(unitName).incrementAndGet();
+	}
+
+	@Override
+	public long generateIds(String unitName, int count) {
+		return idGenerator(unitName).addAndGet(count);
+	}
+
+	@Override
+	public long getLastId(String unitName) {
+		return idGenerator(unitName).get();
 	}
 
 	public static class IgniteLock implements Lock {
@@ -444,6 +583,11 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 		return ignite.atomicLong(name + "@long" + tenantId, 0, true).decrementAndGet();
 	}
 
+	@Override
+	public boolean compareAndSetAtomicLong(String name, Integer tenantId, long expect, long update) {
+		return ignite.atomicLong(name + "@long" + tenantId, 0, true).compareAndSet(expect, update);
+	}
+
 	@Override
 	public PersistenceLogEntry createPersistenceLogEntry() {
 		return new PersistenceLogEntry();
@@ -489,15 +633,24 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 
 		@Override
 		public Object process(MutableEntry<AffinityKey<Long>, StoredBean> mutableEntry, Object... objects) throws EntryProcessorException {
-			if (mutableEntry.getKey().key() != null) {
+			if (mutableEntry.getKey().key() != null && mutableEntry.exists()) {
 				StoredBean value = mutableEntry.getValue();
 				update.eval(value);
 				mutableEntry.setValue(value);
+				return Boolean.TRUE; // updated: invokeAll() results only have non-null ones
 			}
 			return null;
 		}
 	}
 
+	/**
+	 * invokeAll() returns processor failures instead of throwing them (unlike invoke()), so the transaction has to check and roll back
+	 */
+	private static <K> void checkResults(Map<K, EntryProcessorResult<Object>> results) {
+		for (EntryProcessorResult<Object> result : results.values())
+			result.get();
+	}
+
 	@Override
 	public List<EntityDescriptor> save(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes, List<InPlaceUpdate<?>> inPlaceUpdates, boolean serviceData) throws DataStorageException {
 		Transaction tx = ignite.transactions().txStart();
@@ -506,28 +659,28 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 			for (StoredBean bean : inserts) {
 				String unitName = bean.unitName();
 				if (!maps.containsKey(unitName)) {
-					IgniteCache<AffinityKey<Long>, StoredBean> map = ignite.cache(unitName);
+					IgniteCache<AffinityKey<Long>, StoredBean> map = cache(unitName);
 					maps.put(unitName, map);
 				}
 			}
 			for (StoredBean bean : updates) {
 				String unitName = bean.unitName();
 				if (!maps.containsKey(unitName)) {
-					IgniteCache<AffinityKey<Long>, StoredBean> map = ignite.cache(unitName);
+					IgniteCache<AffinityKey<Long>, StoredBean> map = cache(unitName);
 					maps.put(unitName, map);
 				}
 			}
 			for (Delete delete : deletes) {
 				String unitName = delete.getUnitName();
 				if (!maps.containsKey(unitName)) {
-					IgniteCache<AffinityKey<Long>, StoredBean> map = ignite.cache(unitName);
+					IgniteCache<AffinityKey<Long>, StoredBean> map = cache(unitName);
 					maps.put(unitName, map);
 				}
 			}
 			for (InPlaceUpdate<?> update : inPlaceUpdates) {
 				String unitName = update.getUnitName();
 				if (!maps.containsKey(unitName)) {
-					IgniteCache<AffinityKey<Long>, StoredBean> map = ignite.cache(unitName);
+					IgniteCache<AffinityKey<Long>, StoredBean> map = cache(unitName);
 					maps.put(unitName, map);
 				}
 			}
@@ -559,26 +712,25 @@ public class IgniteInMemoryStorage implements InMemoryStorageProvider {
 					result.add(new EntityDescriptor(delete.getEntityClass(), delete.getId(), delete.getUnitName()));
 					map.remove(key(delete.getId(), delete.getUnitName()));
 				} else {
-					Set<AffinityKey<Long>> keys = new HashSet<>();
-					QueryCursor<Cache.Entry<AffinityKey<Long>, Object>> cursor = map.query(new SqlQuery<AffinityKey<Long>, Object>(delete.getEntityClass(),
-						"FROM " + delete.getEntityClass().getSimpleName() + " WHERE " + delete.getCriteria().convert(new PredicateQueryBuilder())));
-					try {
-						for (Iterator<Cache.Entry<AffinityKey<Long>, Object>> i = cursor.iterator(); i.hasNext(); )
-							keys.add(i.next().getKey());
-					} finally {
-						cursor.close();
-					}
-
-					for (AffinityKey<Long> key : keys) {
-						result.add(new EntityDescriptor(delete.getEntityClass(), key.key(), delete.getUnitName()));
-						map.remove(key);
-					}
+					long[] ids = deleteAll(map, delete.getEntityClass(), delete.getCriteria(), !serviceData);
+					if (ids.length > 0)
+						result.add(new EntityDescriptor(delete.getEntityClass(), delete.getUnitName(), ids));
 				}
 			}
 
-			for (final InPlaceUpdate<?> update : inPlaceUpdates) {
+			for (List<InPlaceUpdate<?>> batch : InPlaceUpdate.batches(inPlaceUpdates)) {
+				InPlaceUpdate<?> update = batch.get(0);
 				IgniteCache<AffinityKey<Long>, StoredBean> map = maps.get(update.getUnitName());
-				map.invoke(key(update.getId(), update.getUnitName()), new EntryUpdater(update));
+				if (update.getCriteria() != null)
+					update.setAffectedIds(updateAll(map, update));
+				else if (batch.size() == 1)
+					map.invoke(key(update.getId(), update.getUnitName()), new EntryUpdater(update));
+				else {
+					Set<AffinityKey<Long>> keys = new HashSet<>();
+					for (InPlaceUpdate<?> u : batch)
+						keys.add(key(u.getId(), u.getUnitName()));
+					checkResults(map.invokeAll(keys, new EntryUpdater(update)));
+				}
 			}
 
 			if (writeThrough != null && !serviceData) {
@@ -20,11 +20,22 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.px100systems.util.MetricsRegistry;
+import com.px100systems.util.ParallelTasks;
 import com.px100systems.data.core.EntityDescriptor;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.jdbc.core.JdbcTemplate;
 import com.px100systems.data.core.RawRecord;
@@ -52,6 +63,9 @@ import com.px100systems.data.plugin.persistence.jdbc.TransactionalJdbcService.Jd
  * them into several blocks - useful to examine human-readable JSON records in the database.<br>
  * lastSaved time is always saved in the first storage.<br>
  * <br>
+ * One save is a separate transaction per data source. Those can be written concurrently (see parallelWriters).
+ * A partially failed save is retried (see writeRetries) and never advances lastSaved time.<br>
+ * <br>
  * <b>Performance tip:</b> since no complex relational structure is required, simple fast databases like MySQL work best - much faster than any NoSQL ones.<br>
  * <br>
  * See configuration parameter setters for details.
@@ -60,11 +74,18 @@ import com.px100systems.data.plugin.persistence.jdbc.TransactionalJdbcService.Jd
  * @author Alex Rogachevsky
 */
 public class JdbcPersistence implements PersistenceProvider {
+	private static Log log = LogFactory.getLog(JdbcPersistence.class);
+
 	private UnitStorageMapper unitStorageMapper; 
 	private Map<String, Storage> storages;
 	private Storage lastSavedStorage;
 	private String schemaName = null;
 	private String databaseDirectory = null;
+	private int parallelWriters = 1;
+	private int writeRetries = 2;
+	private long writeRetryMillis = 1000L;
+	private ExecutorService writers = null;
+	private MetricsRegistry metricsRegistry = null;
 
 	public JdbcPersistence() {
 	}
@@ -111,6 +132,44 @@ public class JdbcPersistence implements PersistenceProvider {
 		this.databaseDirectory = databaseDirectory;
 	}
 
+	/**
+	 * How many data sources (connections) to write to concurrently in one save. Only makes sense if storages are spread across several
+	 * databases or schemas. The default is 1 - one after another in the persister's thread.
+	 * @param parallelWriters max. concurrent per-data-source transactions
+	 */
+	@SuppressWarnings("unused")
+	public void setParallelWriters(int parallelWriters) {
+		this.parallelWriters = parallelWriters;
+	}
+
+	/**
+	 * How many times to retry failed per-data-source transactions of one save before giving up (default is 2).
+	 * Others are not repeated. lastSaved time is only updated if all of them succeeded.
+	 * @param writeRetries retries
+	 */
+	@SuppressWarnings("unused")
+	public void setWriteRetries(int writeRetries) {
+		this.writeRetries = writeRetries;
+	}
+
+	/**
+	 * Pause before retrying failed per-data-source transactions (default is 1 second).
+	 * @param writeRetryMillis pause in milliseconds
+	 */
+	@SuppressWarnings("unused")
+	public void setWriteRetryMillis(long writeRetryMillis) {
+		this.writeRetryMillis = writeRetryMillis;
+	}
+
+	/**
+	 * Optional registry to report per-data-source write retries to ("px100.persister.write.retries").
+	 * @param metricsRegistry metrics registry
+	 */
+	@SuppressWarnings("unused")
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
 	@Override
 	public void init() {
 		if (schemaName != null)
@@ -184,19 +243,11 @@ public class JdbcPersistence implements PersistenceProvider {
 			organizeRecord(r, false, transactionsByDataSource, transactions);		
 			
 		for (EntityDescriptor r : deletes)
-			organizeRecord(new RawRecord(r.getUnit(), r.getId()), true, transactionsByDataSource, transactions);
+			for (long id : r.getIds())
+				organizeRecord(new RawRecord(r.getUnit(), id), true, transactionsByDataSource, transactions);
 		
+		write(transactionsByDataSource.values(), false);
 		try {
-			for (final List<StorageTransaction> t : transactionsByDataSource.values())
-				t.get(0).storage.getConnection().write(new JdbcCallback<Void>() {
-					@Override
-					public Void transaction(JdbcTemplate jdbc) {
-						for (StorageTransaction transaction : t)
-							transaction.save(jdbc);
-						return null;
-					}
-				});
-			
 			lastSavedStorage.updateLastSaved(lastUpdateTime);
 		} catch (Exception e) {
 			throw new PersistenceProviderException(e);
@@ -214,25 +265,113 @@ public class JdbcPersistence implements PersistenceProvider {
 		for (RawRecord r : inserts) 
 			organizeRecord(r, false, transactionsByDataSource, transactions);		
 
+		write(transactionsByDataSource.values(), true);
+	}
+
+	/**
+	 * Executes per-data-source transactions: concurrently if parallelWriters is greater than 1.<br>
+	 * Data sources are independent, so some transactions may commit while others fail. Only the failed ones are retried (writeRetries times).
+	 * If some still fail, the exception is thrown and lastSaved is not advanced: the caller re-sends the whole batch later.
+	 * That is safe, since records are rewritten and deleted by ID, so re-applying the already committed ones is harmless.
+	 */
+	private void write(Collection<List<StorageTransaction>> transactions, boolean insertOnly) throws PersistenceProviderException {
+		Collection<List<StorageTransaction>> pending = transactions;
+		for (int attempt = 0; ; attempt++) {
+			Map<List<StorageTransaction>, Exception> failures = attempt(pending, insertOnly);
+			if (failures.isEmpty())
+				return;
+
+			List<String> failed = new ArrayList<String>();
+			for (List<StorageTransaction> t : failures.keySet())
+				failed.add(t.get(0).storage.getConnection().getName());
+			Exception cause = failures.values().iterator().next();
+
+			if (attempt >= writeRetries)
+				throw new PersistenceProviderException("Failed to write to " + failed + " (" + (transactions.size() - failures.size()) +
+					" of " + transactions.size() + " data source(s) committed)", cause);
+
+			log.warn("Failed to write to " + failed + ", retrying: " + cause.getMessage());
+			if (metricsRegistry != null)
+				for (String dataSource : failed)
+					metricsRegistry.count("px100.persister.write.retries", Collections.singletonMap("dataSource", dataSource), 1L);
+			try {
+				Thread.sleep(writeRetryMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new PersistenceProviderException(e);
+			}
+			pending = failures.keySet();
+		}
+	}
+
+	private Map<List<StorageTransaction>, Exception> attempt(Collection<List<StorageTransaction>> transactions, boolean insertOnly) {
+		Map<List<StorageTransaction>, Exception> failures = new HashMap<List<StorageTransaction>, Exception>();
+
+		if (parallelWriters <= 1 || transactions.size() == 1) {
+			for (List<StorageTransaction> t : transactions)
+				try {
+					write(t, insertOnly);
+				} catch (Exception e) {
+					failures.put(t, e);
+				}
+			return failures;
+		}
+
+		Map<List<StorageTransaction>, Future<?>> futures = new HashMap<List<StorageTransaction>, Future<?>>();
+		for (List<StorageTransaction> t : transactions)
+			futures.put(t, writers().submit(() -> write(t, insertOnly)));
+
+		for (Map.Entry<List<StorageTransaction>, Future<?>> e : futures.entrySet())
+			try {
+				e.getValue().get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				failures.put(e.getKey(), ex);
+			} catch (ExecutionException ex) {
+				failures.put(e.getKey(), ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex);
+			}
+		return failures;
+	}
+
+	private void write(final List<StorageTransaction> t, final boolean insertOnly) {
+		t.get(0).storage.getConnection().write(new JdbcCallback<Void>() {
+			@Override
+			public Void transaction(JdbcTemplate jdbc) {
+				for (StorageTransaction transaction : t)
+					if (insertOnly)
+						transaction.insert(jdbc);
+					else
+						transaction.save(jdbc);
+				return null;
+			}
+		});
+	}
+
+	private synchronized ExecutorService writers() {
+		if (writers == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			writers = Executors.newFixedThreadPool(parallelWriters, r -> {
+				Thread t = new Thread(r, "px100-jdbc-writer-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return writers;
+	}
+
+	@Override
+	public void loadByStorage(String storageName, LoadCallback callback) throws PersistenceProviderException {
 		try {
-			for (final List<StorageTransaction> t : transactionsByDataSource.values())
-				t.get(0).storage.getConnection().write(new JdbcCallback<Void>() {
-					@Override
-					public Void transaction(JdbcTemplate jdbc) {
-						for (StorageTransaction transaction : t)
-							transaction.insert(jdbc);
-						return null;
-					}
-				});
+			storages.get(storageName).load(null, callback);
 		} catch (Exception e) {
 			throw new PersistenceProviderException(e);
 		}
 	}
 
 	@Override
-	public void loadByStorage(String storageName, LoadCallback callback) throws PersistenceProviderException {
+	public void loadRecords(String unitName, Collection<Long> ids, LoadCallback callback) throws PersistenceProviderException {
 		try {
-			storages.get(storageName).load(null, callback);
+			storages.get(unitStorage(unitName)).load(unitName, ids, callback);
 		} catch (Exception e) {
 			throw new PersistenceProviderException(e);
 		}
@@ -247,14 +386,11 @@ public class JdbcPersistence implements PersistenceProvider {
 	@Override
 	public Map<String, Long> loadMaxIds() throws PersistenceProviderException {
 		try {
-			Map<String, Long> result = new HashMap<String, Long>();
-			for (Storage storage : storages.values()) 
-				for (Map.Entry<String, Long> e : storage.loadMaxIds().entrySet()) {
-					Long maxId = result.get(e.getKey());
-					if (maxId == null || e.getValue() > maxId)
-						maxId = e.getValue();
-					result.put(e.getKey(), maxId);
-				}
+			Map<String, Long> result = new ConcurrentHashMap<String, Long>();
+			ParallelTasks.run("Loading max IDs", storages.values(), storages.size(), storage -> {
+				for (Map.Entry<String, Long> e : storage.loadMaxIds().entrySet())
+					result.merge(e.getKey(), e.getValue(), Math::max);
+			});
 			return result;
 		} catch (Exception e) {
 			throw new PersistenceProviderException(e);
@@ -19,7 +19,9 @@ package com.px100systems.data.plugin.persistence.jdbc;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import org.springframework.beans.factory.annotation.Required;
@@ -41,6 +43,8 @@ import com.px100systems.data.plugin.persistence.jdbc.TransactionalJdbcService.Jd
  * @author Alex Rogachevsky
 */
 public class Storage {
+	private static final int IN_LIST_SIZE = 500;
+
 	private String table;
 	private String binaryType = "BINARY";
 	private int blockSize;
@@ -223,8 +227,6 @@ public class Storage {
 	}
 	
 	protected void load(List<String> unitNames, final LoadCallback callback) {
-		final LoadData currentRecord = new LoadData();
-		
 		StringBuilder where = new StringBuilder();
 		if (unitNames != null)
 			for (String like : unitNames) {
@@ -236,9 +238,37 @@ public class Storage {
 			}
 		
 		connection.getJdbc().setFetchSize(50);
-		connection.getJdbc().query("SELECT unit_name, generator_name, class_name, id, data_size, data FROM " + table + 
+		load("SELECT unit_name, generator_name, class_name, id, data_size, data FROM " + table +
 			(where.length() > 0 ? (" WHERE " + where) : "") +
-			" ORDER BY unit_name ASC, id ASC, block_number ASC", new RowCallbackHandler() {
+			" ORDER BY unit_name ASC, id ASC, block_number ASC", callback);
+	}
+
+	/**
+	 * Specific records of one unit: queried in portions of IN_LIST_SIZE IDs
+	 */
+	protected void load(String unitName, Collection<Long> ids, LoadCallback callback) {
+		List<Long> portion = new ArrayList<Long>();
+		for (Iterator<Long> i = ids.iterator(); i.hasNext(); ) {
+			portion.add(i.next());
+			if (portion.size() >= IN_LIST_SIZE || !i.hasNext()) {
+				StringBuilder list = new StringBuilder();
+				for (Long id : portion) {
+					if (list.length() > 0)
+						list.append(",");
+					list.append(id);
+				}
+
+				load("SELECT unit_name, generator_name, class_name, id, data_size, data FROM " + table +
+					" WHERE unit_name = '" + unitName + "' AND id IN (" + list + ") ORDER BY id ASC, block_number ASC", callback);
+				portion.clear();
+			}
+		}
+	}
+
+	private void load(String sql, final LoadCallback callback) {
+		final LoadData currentRecord = new LoadData();
+
+		connection.getJdbc().query(sql, new RowCallbackHandler() {
 			@Override
 			public void processRow(ResultSet rs) throws SQLException {
 				String unitName = rs.getString("unit_name");
@@ -18,20 +18,31 @@ package com.px100systems.data.core;
 
 import com.google.common.reflect.ClassPath;
 import com.px100systems.data.plugin.storage.EntityCursor;
+import com.px100systems.util.ParallelTasks;
+import com.px100systems.util.VoidOneArgLambda;
 import com.px100systems.util.serialization.SerializationDefinition;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
+import java.io.IOException;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * Persistent database: whether in-memory with write-behind/write-through or traditional one.<br>
@@ -43,7 +54,14 @@ import java.util.Set;
  * 	<li>initializer - a "one-time" development mode parameter - a callback, that populates the database after it is wiped out (on server startup).
  * 	  if initializer is specified, the database schema is being wiped out on the startup - storage provider responsibility.
  * 	<li>baseEntityPackages - the packages to scan for Entity subclasses - to build persistence units (maps).
+ * 	<li>classpathScan - always scan baseEntityPackages ignoring build-time entity manifests (see {@link EntityManifest}). Off by default.
  *  <li>runtimeStorage - in-memory cache needed for ID generators, etc.
+ *  <li>groupCommitMillis - optional group commit window (off by default, atomic saves only - see {@link #isSaveAtomic}) - see {@link GroupCommit}.
+ *  <li>groupCommitMaxSize - the max. number of transactions merged into one group commit. 100 by default.
+ *  <li>bulkImportChunkSize - the number of entities written at once by {@link #bulkImport}. 1000 by default.
+ *  <li>asyncCommitThreads - the size of the thread pool executing {@link Transaction#commitAsync} when virtual threads are not available. 16 by default.
+ *  <li>startupThreads - the number of threads creating units, indexes, and ID generators in parallel at startup. 8 by default.
+ *  <li>sharedUnits - store all tenants of an entity in one grid map/cache (in-memory databases only). Off by default. See {@link #setSharedUnits}.
  * </ul>
  *
  * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
@@ -59,6 +77,22 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 
 	private List<String> baseEntityPackages;
 	private Map<String, Class<? extends Entity>> configuredEntities;
+	private ConcurrentMap<Class<?>, Class<?>> resolvedEntities = new ConcurrentHashMap<>();
+
+	private long groupCommitMillis = 0;
+	private int groupCommitMaxSize = 100;
+	private GroupCommit groupCommit = null;
+
+	private int bulkImportChunkSize = 1000;
+
+	private boolean sharedUnits = false;
+
+	private int startupThreads = 8;
+	private boolean classpathScan = false;
+	private Map<String, ParallelTasks.Stats> startupMetrics = new LinkedHashMap<>();
+
+	private int asyncCommitThreads = 16;
+	private ExecutorService asyncCommitExecutor = null;
 
 	public static class EntityInfo {
 		private String unitName;
@@ -147,13 +181,154 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 		this.initializer = initializer;
 	}
 
+	/**
+	 * Opt-in group commit for high rates of small concurrent transactions: commits arriving within this window are merged into one
+	 * storage transaction and one write-behind log entry. Each caller still gets its own outcome. Zero (default) turns it off.
+	 * @param groupCommitMillis group commit window in milliseconds
+	 */
+	@SuppressWarnings("unused")
+	public void setGroupCommitMillis(long groupCommitMillis) {
+		this.groupCommitMillis = groupCommitMillis;
+	}
+
+	/**
+	 * The max. number of transactions merged into one group commit. 100 by default.
+	 * @param groupCommitMaxSize max. group size
+	 */
+	@SuppressWarnings("unused")
+	public void setGroupCommitMaxSize(int groupCommitMaxSize) {
+		this.groupCommitMaxSize = groupCommitMaxSize;
+	}
+
+	/**
+	 * The size of the thread pool executing asynchronous commits - only used if the JVM doesn't have virtual threads. 16 by default.
+	 * @param asyncCommitThreads pool size
+	 */
+	@SuppressWarnings("unused")
+	public void setAsyncCommitThreads(int asyncCommitThreads) {
+		this.asyncCommitThreads = asyncCommitThreads;
+	}
+
+	/**
+	 * The number of entities written at once by {@link #bulkImport}: one ID block per ID generator, one grid batch, and one persistence log entry.
+	 * 1000 by default.
+	 * @param bulkImportChunkSize chunk size
+	 */
+	@SuppressWarnings("unused")
+	public void setBulkImportChunkSize(int bulkImportChunkSize) {
+		this.bulkImportChunkSize = bulkImportChunkSize;
+	}
+
+	/**
+	 * Shared-unit mode: all tenants of an entity live in one grid map/cache with an indexed tenantId instead of one per entity per tenant.
+	 * Transactions add the tenant predicate to every query automatically, while the (logical) unit names,
+	 * the persistence layer, and per-tenant partition affinity stay the same. ID generators become per-entity (shared by all tenants),
+	 * so existing data must have IDs unique across tenants (e.g. a common idGeneratorName()).<br>
+	 * Only supported by in-memory databases. Off by default.
+	 * @param sharedUnits shared-unit mode
+	 */
+	@SuppressWarnings("unused")
+	public void setSharedUnits(boolean sharedUnits) {
+		this.sharedUnits = sharedUnits;
+	}
+
+	public boolean isSharedUnits() {
+		return sharedUnits;
+	}
+
+	/**
+	 * The number of threads creating units (maps, caches, or collections), indexes, and ID generators in parallel at startup.
+	 * 1 means sequentially. 8 by default.
+	 * @param startupThreads thread count
+	 */
+	@SuppressWarnings("unused")
+	public void setStartupThreads(int startupThreads) {
+		this.startupThreads = startupThreads;
+	}
+
+	/**
+	 * Always scan the classpath for entities ignoring build-time entity manifests (see {@link EntityManifest}) e.g. in development
+	 * with incremental compilation. Off by default: scanning is only the fallback when there are no manifests.
+	 * @param classpathScan whether to scan the classpath
+	 */
+	@SuppressWarnings("unused")
+	public void setClasspathScan(boolean classpathScan) {
+		this.classpathScan = classpathScan;
+	}
+
+	/**
+	 * Startup metrics: one entry per parallel startup phase (see {@link #setStartupThreads}).
+	 * @return phase metrics in execution order
+	 */
+	public synchronized Map<String, ParallelTasks.Stats> getStartupMetrics() {
+		return new LinkedHashMap<>(startupMetrics);
+	}
+
+	/**
+	 * Run a startup phase in parallel (see {@link #setStartupThreads}) recording its metrics
+	 * @param name phase name
+	 * @param items items to process
+	 * @param task task
+	 * @param <T> item type
+	 */
+	protected <T> void startupPhase(String name, Collection<T> items, VoidOneArgLambda<T> task) {
+		ParallelTasks.Stats stats = ParallelTasks.run(name, items, startupThreads, task);
+		synchronized (this) {
+			startupMetrics.put(name, stats);
+		}
+	}
+
+	/**
+	 * Whether the database supports the shared-unit mode. See {@link #setSharedUnits}.
+	 * @return false by default
+	 */
+	protected boolean supportsSharedUnits() {
+		return false;
+	}
+
 	public RuntimeStorage getRuntimeStorage() {
 		return runtimeStorage;
 	}
 
 	@Override
 	public void destroy() {
+		synchronized (this) {
+			if (asyncCommitExecutor != null)
+				asyncCommitExecutor.shutdown();
+		}
 		shutdown();
+		UnitDescriptor.clear();
+	}
+
+	/**
+	 * Call when the tenant is removed: drops its cached unit descriptors (see {@link UnitDescriptor#removeTenant}).
+	 * Its data units are left alone.
+	 * @param tenantId tenant ID
+	 */
+	@SuppressWarnings("unused")
+	public void onTenantRemoved(int tenantId) {
+		UnitDescriptor.removeTenant(tenantId);
+	}
+
+	/**
+	 * Dedicated executor for {@link Transaction#commitAsync}: a virtual thread per task if the JVM supports them, otherwise a fixed pool
+	 * of daemon threads (see asyncCommitThreads). Created on first use.
+	 * @return the executor
+	 */
+	protected synchronized ExecutorService getAsyncCommitExecutor() {
+		if (asyncCommitExecutor == null) {
+			try {
+				asyncCommitExecutor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception ignored) {
+				AtomicInteger threadNo = new AtomicInteger(0);
+				asyncCommitExecutor = Executors.newFixedThreadPool(asyncCommitThreads, r -> {
+					Thread t = new Thread(r, "px100-async-commit-" + threadNo.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+			}
+		}
+		return asyncCommitExecutor;
 	}
 
 	@Override
@@ -165,28 +340,41 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 		configuredEntities = new HashMap<String, Class<? extends Entity>>();
 
 		try {
-			ClassPath cp = ClassPath.from(getClass().getClassLoader());
-			for (String p : baseEntityPackages)
-				for (ClassPath.ClassInfo cli : cp.getTopLevelClassesRecursive(p)) {
-					Class<?> eClass = Class.forName(cli.getName());
-					if (!Modifier.isAbstract(eClass.getModifiers()) && Entity.class.isAssignableFrom(eClass)) {
-						Class<? extends Entity> entityClass = (Class<? extends Entity>)eClass;
-						String name = entityClass.getSimpleName();
-						Class<? extends Entity> cls = configuredEntities.get(name);
-						if (cls != null) {
-							if (cls.getName().equals(entityClass.getName()))
-								continue;
-							throw new RuntimeException("Duplicate entities in different packages: " + name);
-						}
-						configuredEntities.put(name, entityClass);
-						SerializationDefinition.register(entityClass);
+			for (String className : entityClassNames()) {
+				Class<?> eClass = Class.forName(className);
+				if (!Modifier.isAbstract(eClass.getModifiers()) && Entity.class.isAssignableFrom(eClass)) {
+					Class<? extends Entity> entityClass = (Class<? extends Entity>)eClass;
+					String name = entityClass.getSimpleName();
+					Class<? extends Entity> cls = configuredEntities.get(name);
+					if (cls != null) {
+						if (cls.getName().equals(entityClass.getName()))
+							continue;
+						throw new RuntimeException("Duplicate entities in different packages: " + name);
 					}
+					configuredEntities.put(name, entityClass);
+					SerializationDefinition.register(entityClass);
 				}
+			}
 		} catch (Exception e1) {
 			throw new RuntimeException(e1);
 		}
 
 		SerializationDefinition.lock();
+		UnitDescriptor.setEntityResolver(configuredEntities::get);
+
+		if (sharedUnits) {
+			if (!supportsSharedUnits())
+				throw new RuntimeException("Shared units are not supported by " + getClass().getSimpleName());
+			for (Class<? extends Entity> entityClass : configuredEntities.values())
+				UnitDescriptor.setShared(entityClass);
+		}
+
+		if (groupCommitMillis > 0) {
+			if (isSaveAtomic())
+				groupCommit = new GroupCommit(this, groupCommitMillis, groupCommitMaxSize);
+			else
+				log.warn("Group commit is turned off: " + getClass().getSimpleName() + " doesn't save transactions atomically");
+		}
 
 		runtimeStorage.getProvider().start();
 
@@ -197,6 +385,8 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 		List<EntityInfo> entities = new ArrayList<>();
 		for (Class<? extends Entity> entityClass : getConfiguredEntities().values()) {
 			Map<String, Class<?>> indexes = Entity.indexes(entityClass);
+			if (sharedUnits && !indexes.containsKey("tenantId") && !indexes.containsKey("tenantId*"))
+				indexes.put("tenantId", Integer.class);
 			List<CompoundIndexDescriptor> compoundIndexes = Entity.compoundIndexes(entityClass);
 			if (tenants.isEmpty())
 				entities.add(new EntityInfo(entityClass, 0, Entity.unitFromClass(entityClass, 0), indexes, compoundIndexes));
@@ -213,6 +403,48 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 		}
 	}
 
+	/**
+	 * Candidate entity class names: from build-time manifests (see {@link EntityManifest}) if any, otherwise by scanning the classpath.
+	 * Packages without manifest entries (e.g. built w/o the annotation processor) are scanned anyway.
+	 */
+	private List<String> entityClassNames() throws IOException {
+		long start = System.currentTimeMillis();
+		List<String> result = new ArrayList<>();
+
+		List<String> manifest = classpathScan ? null : EntityManifest.load(getClass().getClassLoader());
+		List<String> scanned = new ArrayList<>();
+		if (manifest != null) {
+			for (String p : baseEntityPackages) {
+				int found = 0;
+				for (String className : manifest)
+					if (className.startsWith(p + ".")) {
+						result.add(className);
+						found++;
+					}
+				if (found == 0) {
+					log.warn("No entity manifest entries in package " + p + ": scanning the classpath");
+					scanned.add(p);
+				}
+			}
+			log.info("Loaded " + result.size() + " entity classes from manifests in " + (System.currentTimeMillis() - start) + " ms");
+		} else
+			scanned.addAll(baseEntityPackages);
+
+		if (!scanned.isEmpty()) {
+			start = System.currentTimeMillis();
+			int count = 0;
+			ClassPath cp = ClassPath.from(getClass().getClassLoader());
+			for (String p : scanned)
+				for (ClassPath.ClassInfo cli : cp.getTopLevelClassesRecursive(p)) {
+					result.add(cli.getName());
+					count++;
+				}
+			log.info("Scanned " + count + " classes in " + (System.currentTimeMillis() - start) + " ms");
+		}
+
+		return result;
+	}
+
 	/**
 	 * Get a map of current tenants. Used internally by the framework.
 	 * @return tenant map
@@ -228,8 +460,10 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 	}
 
 	public void onNewTenant(BaseTenantConfig tenant) throws DataStorageException {
-		for (Class<? extends Entity> entityClass : configuredEntities.values())
-			runtimeStorage.getProvider().createMap(entityClass, Entity.unitFromClass(entityClass, tenant.getId()), Entity.indexes(entityClass), Entity.compoundIndexes(entityClass), false);
+		UnitDescriptor.removeTenant(tenant.getId()); // stale ones e.g. looked up by name before the tenant existed
+		if (!sharedUnits) // shared units already exist
+			for (Class<? extends Entity> entityClass : configuredEntities.values())
+				runtimeStorage.getProvider().createMap(entityClass, Entity.unitFromClass(entityClass, tenant.getId()), Entity.indexes(entityClass), Entity.compoundIndexes(entityClass), false);
 		runtimeStorage.onNewTenant(tenant);
 	}
 
@@ -237,6 +471,21 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 		return configuredEntities.get(entityName);
 	}
 
+	/**
+	 * Configured entity class by any class with the same simple name - resolved once and cached.
+	 * @param cls entity class
+	 * @return the configured entity class or null
+	 */
+	public Class<?> entityClass(Class<?> cls) {
+		Class<?> result = resolvedEntities.get(cls);
+		if (result == null) {
+			result = configuredEntities.get(cls.getSimpleName());
+			if (result != null)
+				resolvedEntities.put(cls, result);
+		}
+		return result;
+	}
+
 	public Set<String> entityNames() {
 		return configuredEntities.keySet();
 	}
@@ -262,6 +511,84 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 		return new Transaction(this, tenantId);
 	}
 
+	/**
+	 * Bulk import of new entities bypassing transactions: a much faster alternative to inserting large data sets via {@link Transaction#insert}.<br>
+	 * Entities are written in chunks (see bulkImportChunkSize). IDs are reserved in blocks - one round trip per ID generator per chunk.
+	 * Data grids stream the chunk directly into maps/caches and record it in one compact persistence log entry (or write it through).<br>
+	 * Entities should not have IDs. Their tenantId is respected (zero if not set). Nothing is rolled back if some chunk fails.
+	 *
+	 * @param entities new entities
+	 * @return the number of imported entities
+	 * @throws DataStorageException
+	 */
+	public long bulkImport(Stream<? extends Entity> entities) throws DataStorageException {
+		if (!isActive())
+			throw new DataStorageException("inactive");
+
+		long count = 0;
+		List<Entity> chunk = new ArrayList<>();
+		for (Iterator<? extends Entity> i = entities.iterator(); i.hasNext(); ) {
+			chunk.add(i.next());
+			if (chunk.size() >= bulkImportChunkSize) {
+				importChunk(chunk);
+				count += chunk.size();
+				chunk = new ArrayList<>();
+			}
+		}
+
+		if (!chunk.isEmpty()) {
+			importChunk(chunk);
+			count += chunk.size();
+		}
+
+		log.info("Imported " + count + " entities");
+		return count;
+	}
+
+	private void importChunk(List<Entity> chunk) throws DataStorageException {
+		Date now = new Date();
+
+		Map<String, List<Entity>> generators = new HashMap<>();
+		for (Entity e : chunk) {
+			if (e.getId() != null)
+				throw new RuntimeException("Bulk import of " + e.getClass().getSimpleName() + " with ID " + e.getId());
+			if (e.getTenantId() == null)
+				e.setTenantId(0);
+
+			String generator = e.idGeneratorName();
+			List<Entity> list = generators.get(generator);
+			if (list == null) {
+				list = new ArrayList<>();
+				generators.put(generator, list);
+			}
+			list.add(e);
+		}
+
+		for (Map.Entry<String, List<Entity>> g : generators.entrySet()) {
+			long id = runtimeStorage.generateIds(g.getKey(), g.getValue().size());
+			for (Entity e : g.getValue())
+				e.setId(id++);
+		}
+
+		List<StoredBean> inserts = new ArrayList<>();
+		for (Entity e : chunk) {
+			e.setCreatedAt(now);
+			e.setModifiedAt(now);
+			SerializationDefinition.get(e.getClass()).calculate(e);
+			inserts.add(e);
+		}
+
+		importChunk(now, inserts);
+	}
+
+	/**
+	 * Writes one bulk import chunk: entities with assigned IDs and timestamps. Used internally by bulkImport().
+	 * @param now import time
+	 * @param inserts new entities
+	 * @throws DataStorageException
+	 */
+	protected abstract void importChunk(Date now, List<StoredBean> inserts) throws DataStorageException;
+
 	/**
 	 * Internal method responsible for creating/syncing all entities and indexes on startup.
 	 * initializeData is relevant for in-memory providers - tells it to reset the disk storage: recreate schemas, etc.
@@ -285,6 +612,16 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 	 */
 	protected abstract <T> T get(String unitName, Class<T> cls, Long id);
 
+	/**
+	 * Get several entities by their IDs in one round trip. Internal method used by Transaction.
+	 * @param unitName a unit name is typically the entity name + tenantId
+	 * @param cls entity class
+	 * @param ids entity IDs
+	 * @param <T> entity class
+	 * @return found entity beans by ID
+	 */
+	protected abstract <T> Map<Long, T> getAll(String unitName, Class<T> cls, Collection<Long> ids);
+
 	/**
 	 * Count entites matching some criteria or all if no criteria was specified. Used internally by Transaction.
 	 * @param unitName a unit name is typically the entity name + tenantId
@@ -331,6 +668,42 @@ public abstract class DatabaseStorage implements InitializingBean, DisposableBea
 	protected abstract List<EntityDescriptor> save(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes,
 												   List<InPlaceUpdate<?>> inPlaceUpdates) throws DataStorageException;
 
+	/**
+	 * Saving the changes and notifying write-behind. Used internally by Transaction.commit().
+	 * Transactions without in-place updates go through the group commit if it is turned on (see {@link GroupCommit#groupable}).
+	 * @param now current time
+	 * @param inserts a list of beans to insert
+	 * @param updates a list of changed beans to save
+	 * @param deletes a list of deletes
+	 * @param inPlaceUpdates in-place updates
+	 * @throws DataStorageException
+	 */
+	protected void commit(Date now, List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes,
+						  List<InPlaceUpdate<?>> inPlaceUpdates) throws DataStorageException {
+		if (groupCommit != null && GroupCommit.groupable(deletes, inPlaceUpdates))
+			groupCommit.commit(inserts, updates, deletes);
+		else
+			afterSave(now, inserts, updates, save(inserts, updates, deletes, inPlaceUpdates), inPlaceUpdates);
+	}
+
+	/**
+	 * Whether save() is all or nothing: nothing is written if it fails. Group commit relies on it to retry a failed group one by one.
+	 * False by default.
+	 * @return if save() is atomic
+	 */
+	protected boolean isSaveAtomic() {
+		return false;
+	}
+
+	/**
+	 * Backpressure hook called by Transaction.commit() before saving anything: may delay the caller or reject the transaction.
+	 * Does nothing by default.
+	 * @param tenantId transaction's tenant
+	 * @throws DataStorageBusyException if the transaction is rejected (retryable)
+	 */
+	protected void throttle(Integer tenantId) throws DataStorageBusyException {
+	}
+
 	/**
 	 * Active and healthy e.g. no stalled persistence, etc. Used internally.
 	 * @return if the dartabase is active
@@ -0,0 +1,226 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit: merges small concurrent transactions into one storage transaction and one write-behind log entry.<br>
+ * There is no dedicated thread: the first committer to grab the "leader" role collects whatever arrives within the window
+ * (up to the max. group size), executes it, and completes every caller's future. Other committers simply wait for theirs.<br>
+ * If the merged save fails, every transaction of the group is retried individually, so each caller gets its own outcome
+ * (e.g. only the one with a stale update fails). That is why it is only used with atomic saves (see DatabaseStorage.isSaveAtomic()):
+ * a failed merged save must not leave anything written.<br>
+ * Transactions with in-place updates or criteria deletes are never grouped: in-place updates depend on the operation order,
+ * and criteria deletes may run outside of the grid transaction.<br>
+ * Operations of every transaction are renumbered to follow the previous transaction's ones, so the merged operation order is unambiguous.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class GroupCommit {
+	private static Log log = LogFactory.getLog(GroupCommit.class);
+
+	private DatabaseStorage ds;
+	private long windowMillis;
+	private int maxSize;
+
+	private LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private ReentrantLock leader = new ReentrantLock();
+
+	private static class Request {
+		private List<StoredBean> inserts;
+		private List<StoredBean> updates;
+		private List<Delete> deletes;
+		private int offset = 0; // operation order number shift in the merged transaction
+		private CompletableFuture<Void> result = new CompletableFuture<>();
+
+		public Request(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes) {
+			this.inserts = inserts;
+			this.updates = updates;
+			this.deletes = deletes;
+		}
+	}
+
+	/**
+	 * @param deletes transaction's deletes
+	 * @param inPlaceUpdates transaction's in-place updates
+	 * @return if the transaction can be merged with others
+	 */
+	public static boolean groupable(List<Delete> deletes, List<InPlaceUpdate<?>> inPlaceUpdates) {
+		if (!inPlaceUpdates.isEmpty())
+			return false;
+		for (Delete delete : deletes)
+			if (delete.getId() == null)
+				return false;
+		return true;
+	}
+
+	public GroupCommit(DatabaseStorage ds, long windowMillis, int maxSize) {
+		this.ds = ds;
+		this.windowMillis = windowMillis;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Enqueue the transaction and wait until its group is committed.
+	 * @param inserts inserts
+	 * @param updates updates
+	 * @param deletes deletes
+	 * @throws DataStorageException
+	 */
+	public void commit(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes) throws DataStorageException {
+		Request request = new Request(inserts, updates, deletes);
+		queue.add(request);
+
+		while (!request.result.isDone()) {
+			if (leader.tryLock())
+				try {
+					if (!request.result.isDone())
+						execute(collect());
+				} finally {
+					leader.unlock();
+				}
+			else
+				try {
+					request.result.get(windowMillis, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException | ExecutionException ignored) {
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+		}
+
+		try {
+			request.result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DataStorageException)
+				throw (DataStorageException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private List<Request> collect() {
+		List<Request> group = new ArrayList<>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		try {
+			while (group.size() < maxSize) {
+				long remaining = deadline - System.nanoTime();
+				Request r = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+				if (r == null)
+					break;
+				group.add(r);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return group;
+	}
+
+	private void execute(List<Request> group) {
+		if (group.isEmpty())
+			return;
+
+		if (group.size() == 1) {
+			executeOne(group.get(0));
+			return;
+		}
+
+		List<StoredBean> inserts = new ArrayList<>();
+		List<StoredBean> updates = new ArrayList<>();
+		List<Delete> deletes = new ArrayList<>();
+		int offset = 0;
+		for (Request r : group) {
+			inserts.addAll(r.inserts);
+			updates.addAll(r.updates);
+			int last = offset;
+			for (StoredBean bean : r.inserts)
+				last = Math.max(last, offset + bean.getOperationOrderNo());
+			for (StoredBean bean : r.updates)
+				last = Math.max(last, offset + bean.getOperationOrderNo());
+			for (Delete delete : r.deletes) {
+				deletes.add(new Delete(offset + delete.getOperationOrderNo(), delete));
+				last = Math.max(last, offset + delete.getOperationOrderNo());
+			}
+			r.offset = offset;
+			offset = last + 1;
+		}
+
+		List<InPlaceUpdate<?>> noInPlaceUpdates = Collections.emptyList();
+		List<EntityDescriptor> deleted;
+		renumber(group, 1);
+		try {
+			deleted = ds.save(inserts, updates, deletes, noInPlaceUpdates);
+		} catch (Throwable e) {
+			renumber(group, -1);
+			log.debug("Group commit of " + group.size() + " transactions failed, committing them one by one: " + e.getMessage());
+			for (Request r : group)
+				executeOne(r);
+			return;
+		}
+
+		renumber(group, -1);
+
+		try {
+			ds.afterSave(new Date(), inserts, updates, deleted, noInPlaceUpdates);
+			for (Request r : group)
+				r.result.complete(null);
+		} catch (Throwable e) {
+			for (Request r : group)
+				r.result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Shifts (sign 1) or restores (sign -1) operation order numbers of the group's beans. Deletes are copied instead.
+	 */
+	private static void renumber(List<Request> group, int sign) {
+		for (Request r : group) {
+			for (StoredBean bean : r.inserts)
+				bean.setOperationOrderNo(bean.getOperationOrderNo() + sign * r.offset);
+			for (StoredBean bean : r.updates)
+				bean.setOperationOrderNo(bean.getOperationOrderNo() + sign * r.offset);
+		}
+	}
+
+	private void executeOne(Request r) {
+		try {
+			List<InPlaceUpdate<?>> noInPlaceUpdates = Collections.emptyList();
+			ds.afterSave(new Date(), r.inserts, r.updates, ds.save(r.inserts, r.updates, r.deletes, noInPlaceUpdates), noInPlaceUpdates);
+			r.result.complete(null);
+		} catch (Throwable e) {
+			r.result.completeExceptionally(e);
+		}
+	}
+}
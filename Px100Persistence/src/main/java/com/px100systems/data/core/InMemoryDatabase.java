@@ -21,13 +21,17 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.google.gson.Gson;
 import com.px100systems.data.plugin.storage.EntityCursor;
 import com.px100systems.data.plugin.storage.InMemoryStorageLoader;
@@ -74,7 +78,11 @@ import com.px100systems.util.SpringELCtx;
  * <ul>
  *   <li>persistence - persistence mode: Load (write-through) or Write-Behind. Write-Behind is not advised for "development mode",
  *   <li>maxPersistenceDelayHours - maximum period when the system detects that the write-behind persistence (if enabled) has stalled -
- *     no updates were made over that period since the last update time.
+ *     no persister made any progress over that period while there was something to persist.
+ *   <li>persistencePayloads - write-behind log entries carry serialized entities, so persisters don't re-read them from the grid (off by default)
+ *   <li>throttleBacklog, throttleLagMinutes, maxThrottleMillis, overloadedTenantCommitsPerSecond - write-behind backpressure:
+ *     slow persisters delay and eventually reject (with a retryable exception) commits instead of stalling. See {@link #throttle}.
+ *   <li>persisterTimeoutMinutes - backpressure follows the most advanced (redundant) persister that reported within this period (20 by default)
  *   <li>backupDirectory - directory to dump teh content of the cluster in case of automatic emergency shutdown (typically when the persistence stalled or manually invoked)
  *   <li>persistenceServer - persister, responsible at least for loading the database on startup. Can be null for non-persistent nodes (that don't load or write to the database).
  *     Not all nodes in teh claster need to have (collocated) persisters. However it is already collocated (specified in the RuntimeStorage config)
@@ -92,6 +100,8 @@ public class InMemoryDatabase extends DatabaseStorage {
 	private static final long STATUS_LOADING = 1L;
 	private static final long STATUS_ACTIVE = 2L;
 
+	private static final int UNPERSISTED_SCAN_ENTRIES = 500; // the oldest unpersisted entry lookup window
+
 	private static Log log = LogFactory.getLog(InMemoryDatabase.class);
 	private boolean active = false;
 	private boolean stopped = false;
@@ -100,6 +110,18 @@ public class InMemoryDatabase extends DatabaseStorage {
 	private PersistenceMode persistence = PersistenceMode.WriteBehind; // persistence can be turned off for internal (e.g. Hazelcast's) write-through: make sure no logs, no cleanup, etc.
 
 	private int maxPersistenceDelayHours = 24;
+	private boolean persistencePayloads = false;
+	private long throttleBacklog = 100000L;
+	private int throttleLagMinutes = 30;
+	private long maxThrottleMillis = 1000L;
+	private int overloadedTenantCommitsPerSecond = 10;
+	private int persisterTimeoutMinutes = 20;
+	private final ConcurrentHashMap<String, Long> persisterSlots = new ConcurrentHashMap<>();
+
+	private volatile long pressureCheckedAt = 0L;
+	private volatile double pressure = 0.0;
+	private volatile long quotaSecond = 0L;
+	private final ConcurrentHashMap<Integer, AtomicInteger> quotaUsed = new ConcurrentHashMap<>();
 	private String backupDirectory;
 
 	private DiskPersistence persistenceServer;
@@ -131,6 +153,64 @@ public class InMemoryDatabase extends DatabaseStorage {
 		this.maxPersistenceDelayHours = maxPersistenceDelayHours;
 	}
 
+	/**
+	 * Write-behind log entries carry compact serialized entities, so persisters don't re-read (and re-serialize) them from the grid.
+	 * Makes log entries (and commits) heavier, but catching up persisters don't put any read load on the grid. Off by default.
+	 * @param persistencePayloads store serialized entities in the persistence log
+	 */
+	@SuppressWarnings("unused")
+	public void setPersistencePayloads(boolean persistencePayloads) {
+		this.persistencePayloads = persistencePayloads;
+	}
+
+	/**
+	 * Write-behind backpressure: commits are throttled when this many persistence log entries are not persisted yet (0 turns it off).
+	 * 100000 by default.
+	 * @param throttleBacklog backlog threshold
+	 */
+	@SuppressWarnings("unused")
+	public void setThrottleBacklog(long throttleBacklog) {
+		this.throttleBacklog = throttleBacklog;
+	}
+
+	/**
+	 * Write-behind backpressure: commits are throttled when the oldest not persisted log entry is this old (0 turns it off). 30 by default.
+	 * @param throttleLagMinutes lag threshold in minutes
+	 */
+	@SuppressWarnings("unused")
+	public void setThrottleLagMinutes(int throttleLagMinutes) {
+		this.throttleLagMinutes = throttleLagMinutes;
+	}
+
+	/**
+	 * Write-behind backpressure: the longest commit delay. 1 second by default.
+	 * @param maxThrottleMillis max. delay in milliseconds
+	 */
+	@SuppressWarnings("unused")
+	public void setMaxThrottleMillis(long maxThrottleMillis) {
+		this.maxThrottleMillis = maxThrottleMillis;
+	}
+
+	/**
+	 * Write-behind backpressure: how many commits per second every tenant is still allowed when overloaded (twice over a threshold).
+	 * Others are rejected with {@link DataStorageBusyException}. 10 by default.
+	 * @param overloadedTenantCommitsPerSecond commits per second per tenant
+	 */
+	@SuppressWarnings("unused")
+	public void setOverloadedTenantCommitsPerSecond(int overloadedTenantCommitsPerSecond) {
+		this.overloadedTenantCommitsPerSecond = overloadedTenantCommitsPerSecond;
+	}
+
+	/**
+	 * Write-behind backpressure: redundant persisters that haven't reported progress for this long are ignored,
+	 * and commits are throttled according to the most advanced live one. 20 by default.
+	 * @param persisterTimeoutMinutes persister timeout in minutes
+	 */
+	@SuppressWarnings("unused")
+	public void setPersisterTimeoutMinutes(int persisterTimeoutMinutes) {
+		this.persisterTimeoutMinutes = persisterTimeoutMinutes;
+	}
+
 	/**
 	 * Directory to dump binary grid content in case of emregency server shutdown due to stalled persistence.
 	 * @param backupDirectory local server directory
@@ -194,6 +274,7 @@ public class InMemoryDatabase extends DatabaseStorage {
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		INSTANCE = this;
+		UnitDescriptor.register(PersistenceLogEntry.UNIT_NAME).setPartitioningStrategy(new HashSpreadPartitioning()); // journal batches are read from all members at once
 		SerializationDefinition.register(getRuntimeStorage().getProvider().createPersistenceLogEntry().getClass());
 		super.afterPropertiesSet();
 	}
@@ -215,10 +296,17 @@ public class InMemoryDatabase extends DatabaseStorage {
 					Entity.indexes(PersistenceLogEntry.class), Entity.compoundIndexes(PersistenceLogEntry.class), false); // "Transient" logically, however needs to be transactional, not atomic (Ignite-specific)
 				getRuntimeStorage().createIdGenerator(PersistenceLogEntry.UNIT_NAME, 0L);
 
-				logSaveTime(new Date().getTime());
+				getRuntimeStorage().getProvider().setAtomicLong("lastPersist", null, new Date().getTime());
+				getRuntimeStorage().getProvider().setAtomicLong("lastPersistSequence", null, 0L);
+				getRuntimeStorage().getProvider().setAtomicLong("lastPersistProgress", null, System.currentTimeMillis());
 
+				Set<String> storageUnits = new HashSet<>();
+				List<EntityInfo> units = new ArrayList<>();
 				for (EntityInfo ei : entities)
-					getRuntimeStorage().getProvider().createMap(ei.getEntityClass(), ei.getUnitName(), ei.getRawIndexes(), ei.getCompoundIndexes(), false);
+					if (storageUnits.add(UnitDescriptor.get(ei.getUnitName()).getStorageName())) // shared units are created once
+						units.add(ei);
+				startupPhase("Creating units", units, ei ->
+					getRuntimeStorage().getProvider().createMap(ei.getEntityClass(), ei.getUnitName(), ei.getRawIndexes(), ei.getCompoundIndexes(), false));
 			}
 			lock.unlock();
 		}
@@ -253,8 +341,10 @@ public class InMemoryDatabase extends DatabaseStorage {
 				Long count = getRuntimeStorage().getProvider().getAtomicLong("loadedStorages", null);
 				if (count == storages.size()) {
 
+					Map<String, Long> maxIds = new HashMap<>(); // shared units have one ID generator for all tenants
 					for (Map.Entry<String, Long> maxId : persistenceServer.loadMaxIds().entrySet())
-						getRuntimeStorage().createIdGenerator(maxId.getKey(), maxId.getValue());
+						maxIds.merge(UnitDescriptor.get(maxId.getKey()).getStorageName(), maxId.getValue(), Math::max);
+					startupPhase("Creating ID generators", maxIds.entrySet(), maxId -> getRuntimeStorage().createIdGenerator(maxId.getKey(), maxId.getValue()));
 					log.info("Loaded ID generators");
 
 					getRuntimeStorage().getProvider().setAtomicLong("status", null, STATUS_ACTIVE);
@@ -280,11 +370,21 @@ public class InMemoryDatabase extends DatabaseStorage {
 		getRuntimeStorage().getProvider().shutdown();
 	}
 
+	@Override
+	protected boolean supportsSharedUnits() {
+		return true;
+	}
+
 	@Override
 	protected <T> T get(String unitName, Class<T> cls, Long id) {
 		return getRuntimeStorage().getProvider().get(unitName, id);
 	}
 
+	@Override
+	protected <T> Map<Long, T> getAll(String unitName, Class<T> cls, Collection<Long> ids) {
+		return getRuntimeStorage().getProvider().getAll(unitName, ids);
+	}
+
 	@Override
 	protected long count(String unitName, Class<?> cls, Criteria criteria) {
 		return getRuntimeStorage().getProvider().count(unitName, cls, criteria);
@@ -305,6 +405,31 @@ public class InMemoryDatabase extends DatabaseStorage {
 		return getRuntimeStorage().getProvider().save(inserts, updates, deletes, inPlaceUpdates, false);
 	}
 
+	/**
+	 * Inserts, updates, and deletes by ID are saved in one grid transaction (see {@link GroupCommit#groupable}).
+	 */
+	@Override
+	protected boolean isSaveAtomic() {
+		return true;
+	}
+
+	@Override
+	protected void importChunk(Date now, List<StoredBean> inserts) throws DataStorageException {
+		if (persistence == PersistenceMode.Load) { // write-through: one grid transaction and one database batch per chunk
+			getRuntimeStorage().getProvider().save(inserts, new ArrayList<StoredBean>(), new ArrayList<Delete>(), new ArrayList<InPlaceUpdate<?>>(), false);
+			return;
+		}
+
+		InMemoryStorageLoader loader = getRuntimeStorage().getProvider().loader();
+		try {
+			loader.store(inserts);
+		} finally {
+			loader.close();
+		}
+
+		afterSave(now, new ArrayList<>(inserts), new ArrayList<StoredBean>(), new ArrayList<EntityDescriptor>(), new ArrayList<InPlaceUpdate<?>>());
+	}
+
 	public void emergencyShutdown() {
 		getRuntimeStorage().getProvider().broadcastMessage(CLUSTER_EVENTS, "clusterStop");
 		Gson gson = RawRecord.createGson();
@@ -326,7 +451,7 @@ public class InMemoryDatabase extends DatabaseStorage {
 			for (Class entityClass : getConfiguredEntities().values())
 				for (Integer tenantId : getTenants().keySet()) {
 					String unitName = Entity.unitFromClass(entityClass, tenantId);
-					EntityCursor<?> cursor = getRuntimeStorage().getProvider().search(unitName, entityClass, null, null);
+					EntityCursor<?> cursor = getRuntimeStorage().getProvider().search(unitName, entityClass, UnitDescriptor.get(unitName).scope(null), null);
 					try {
 						Iterator<?> i = cursor.iterator();
 						if (i.hasNext()) {
@@ -425,22 +550,190 @@ public class InMemoryDatabase extends DatabaseStorage {
 	}
 
 	/**
-	 * Used internally by pesisters.
-	 * @param fromTime start time
-	 * @return persistence log - records to persist.
+	 * Used internally by pesisters. The persistence log is a journal: entry IDs are sequence numbers (offsets).
+	 * @return the last allocated sequence number. Entries up to it are either committed or still in flight (or never will be - failed transactions).
 	 */
-	public EntityCursor<PersistenceLogEntry> getPersistenceLog(Long fromTime) {
-		return getRuntimeStorage().getProvider().search(PersistenceLogEntry.UNIT_NAME, PersistenceLogEntry.class, Criteria.gt("time", fromTime),
-			Collections.singletonList("time ASC"));
+	public long getPersistenceLogHead() {
+		return getRuntimeStorage().getProvider().getLastId(PersistenceLogEntry.UNIT_NAME);
 	}
 
-	public RawRecord getPersistenceRecord(String unitName, Long id) {
-		Entity entity = getRuntimeStorage().getProvider().get(unitName, id);
-		return entity == null ? null : new RawRecord(entity, RawRecord.createGson());
+	/**
+	 * Used internally by pesisters to read the journal by offset.
+	 * @param fromSequence first sequence number
+	 * @param toSequence last sequence number (inclusive)
+	 * @return entries by sequence number - missing (in flight, failed, or purged) ones are omitted
+	 */
+	public Map<Long, PersistenceLogEntry> getPersistenceLog(long fromSequence, long toSequence) {
+		List<Long> ids = new ArrayList<>((int)(toSequence - fromSequence + 1));
+		for (long id = fromSequence; id <= toSequence; id++)
+			ids.add(id);
+		return getRuntimeStorage().getProvider().getAll(PersistenceLogEntry.UNIT_NAME, ids);
 	}
 
-	public void logSaveTime(Long time) {
-		getRuntimeStorage().getProvider().setAtomicLong("lastPersist", null, time); // Should be fast enough. If a simple atomic update presents a problem, use no-wait locks
+	/**
+	 * Used internally by pesisters to find the resume point once on (re)start.
+	 * @param fromTime the persister's last save time
+	 * @return the first sequence number logged at or after that time (repeating a few persisted ones is harmless) or the head + 1 if there are none
+	 */
+	public long getPersistenceLogStart(Long fromTime) {
+		List<PersistenceLogEntry> first = getRuntimeStorage().getProvider().search(PersistenceLogEntry.UNIT_NAME, PersistenceLogEntry.class,
+			Criteria.ge("time", fromTime), Collections.singletonList("id ASC"), 1);
+		return first.isEmpty() ? getPersistenceLogHead() + 1 : first.get(0).getId();
+	}
+
+	/**
+	 * Used internally by pesisters to fetch records referenced by a batch of log entries: one round trip per unit.
+	 * @param ids deduplicated record IDs by unit name
+	 * @return found (not deleted since) entities by unit name and ID
+	 */
+	public Map<String, Map<Long, Entity>> getPersistenceRecords(Map<String, Set<Long>> ids) {
+		Map<String, Map<Long, Entity>> result = new HashMap<>();
+		for (Map.Entry<String, Set<Long>> e : ids.entrySet())
+			result.put(e.getKey(), getRuntimeStorage().getProvider().<Entity>getAll(e.getKey(), e.getValue()));
+		return result;
+	}
+
+	/**
+	 * Used internally by pesisters to report progress (and heartbeats). Every persister has its own progress,
+	 * while the cluster-wide one (the most advanced persister) never moves backwards, so slower redundant persisters don't overwrite it.
+	 * @param persister persister name - unique in the cluster
+	 * @param time the last persisted log entry time (null if nothing was persisted yet)
+	 * @param sequence the last persisted (or skipped) log entry sequence number
+	 */
+	public void logSaveTime(String persister, Long time, long sequence) {
+		long now = System.currentTimeMillis();
+		String prefix = persisterKey(persisterSlot(persister));
+		if (raiseAtomicLong(prefix + "sequence", sequence))
+			raiseAtomicLong("lastPersistProgress", now);
+		if (time != null)
+			raiseAtomicLong(prefix + "time", time);
+		getRuntimeStorage().getProvider().setAtomicLong(prefix + "heartbeat", null, now);
+
+		raiseAtomicLong("lastPersistSequence", sequence);
+		if (time != null)
+			raiseAtomicLong("lastPersist", time);
+	}
+
+	/**
+	 * Used internally by persisters to find each other's progress (e.g. for peer-assisted catch-ups)
+	 * @param persister persister name
+	 * @return the last persisted sequence, the last persisted log entry time, and the last report time (all zeros if it never reported)
+	 */
+	public long[] getPersisterProgress(String persister) {
+		InMemoryStorageProvider provider = getRuntimeStorage().getProvider();
+		long slot = persisterSlots.containsKey(persister) ? persisterSlots.get(persister) : provider.getAtomicLong("persisterSlot_" + persister, null);
+		if (slot == 0L)
+			return new long[] {0L, 0L, 0L};
+
+		String prefix = persisterKey(slot);
+		return new long[] {provider.getAtomicLong(prefix + "sequence", null), provider.getAtomicLong(prefix + "time", null),
+			provider.getAtomicLong(prefix + "heartbeat", null)};
+	}
+
+	private static String persisterKey(long slot) {
+		return "persisterProgress_" + slot + "_";
+	}
+
+	/**
+	 * Persisters are numbered (once per cluster) to be iterated over. A lost race leaves an unused number that never reports.
+	 */
+	private long persisterSlot(String persister) {
+		return persisterSlots.computeIfAbsent(persister, name -> {
+			InMemoryStorageProvider provider = getRuntimeStorage().getProvider();
+			long slot = provider.getAtomicLong("persisterSlot_" + name, null);
+			if (slot == 0L) {
+				long allocated = provider.incrementAtomicLong("persisterCount", null);
+				slot = provider.compareAndSetAtomicLong("persisterSlot_" + name, null, 0L, allocated) ?
+					allocated : provider.getAtomicLong("persisterSlot_" + name, null);
+			}
+			return slot;
+		});
+	}
+
+	/**
+	 * @return true if the value was raised, false if it already was greater or equal
+	 */
+	private boolean raiseAtomicLong(String name, long value) {
+		InMemoryStorageProvider provider = getRuntimeStorage().getProvider();
+		for (long current = provider.getAtomicLong(name, null); current < value; current = provider.getAtomicLong(name, null))
+			if (provider.compareAndSetAtomicLong(name, null, current, value))
+				return true;
+		return false;
+	}
+
+	/**
+	 * The most advanced persister that reported within persisterTimeoutMinutes, or the cluster-wide progress if none did.
+	 */
+	private long persistedSequence() {
+		InMemoryStorageProvider provider = getRuntimeStorage().getProvider();
+		long threshold = System.currentTimeMillis() - persisterTimeoutMinutes * 60000L;
+		long result = -1L;
+		for (long slot = provider.getAtomicLong("persisterCount", null); slot > 0L; slot--)
+			if (provider.getAtomicLong(persisterKey(slot) + "heartbeat", null) >= threshold)
+				result = Math.max(result, provider.getAtomicLong(persisterKey(slot) + "sequence", null));
+		return result >= 0L ? result : provider.getAtomicLong("lastPersistSequence", null);
+	}
+
+	/**
+	 * The age of the oldest not persisted log entry. Missing entries (in flight or failed transactions) are skipped,
+	 * so a persister stuck behind one still shows its lag. Used internally for throttling and by persisters' metrics.
+	 * @param persistedSequence the last persisted journal entry
+	 * @param now current time
+	 * @return the age in milliseconds or 0 if there's no backlog
+	 */
+	public long oldestUnpersistedAge(long persistedSequence, long now) {
+		long head = getPersistenceLogHead();
+		for (long from = persistedSequence + 1; from <= head; from += UNPERSISTED_SCAN_ENTRIES) {
+			Map<Long, PersistenceLogEntry> entries = getPersistenceLog(from, Math.min(head, from + UNPERSISTED_SCAN_ENTRIES - 1));
+			long oldest = Long.MAX_VALUE;
+			for (PersistenceLogEntry entry : entries.values())
+				if (entry.getTime() != null)
+					oldest = Math.min(oldest, entry.getTime());
+			if (oldest != Long.MAX_VALUE)
+				return Math.max(0L, now - oldest);
+		}
+		return 0L;
+	}
+
+	/**
+	 * Used internally by persisters to coordinate (e.g. claim shards) via cluster-wide atomics
+	 * @param name atomic name
+	 * @return the value (0 if never set)
+	 */
+	public long getClusterLong(String name) {
+		return getRuntimeStorage().getProvider().getAtomicLong(name, null);
+	}
+
+	/**
+	 * Used internally by persisters to coordinate via cluster-wide atomics
+	 * @param name atomic name
+	 * @param value new value
+	 */
+	public void setClusterLong(String name, long value) {
+		getRuntimeStorage().getProvider().setAtomicLong(name, null, value);
+	}
+
+	/**
+	 * Used internally by persisters to coordinate via cluster-wide atomics
+	 * @param name atomic name
+	 * @return the incremented value
+	 */
+	public long incrementClusterLong(String name) {
+		return getRuntimeStorage().getProvider().incrementAtomicLong(name, null);
+	}
+
+	/**
+	 * Used internally by persisters to coordinate via cluster-wide locks
+	 * @param name lock name
+	 * @param timeoutMillis how long to wait
+	 * @return the lock or null if timed out
+	 */
+	public Lock clusterLock(String name, long timeoutMillis) {
+		return getRuntimeStorage().getProvider().lock(name, timeoutMillis);
+	}
+
+	private long persistenceBacklog() {
+		return getPersistenceLogHead() - getRuntimeStorage().getProvider().getAtomicLong("lastPersistSequence", null);
 	}
 
 	/**
@@ -464,12 +757,14 @@ public class InMemoryDatabase extends DatabaseStorage {
 		}
 	}
 
+	/**
+	 * Stalled means no persister made any progress (not merely slow ones - see {@link #throttle}) for maxPersistenceDelayHours.
+	 */
 	protected boolean persistenceStalled() {
 		if (persistence == PersistenceMode.WriteBehind) {
 			Date threshold = SpringELCtx.dateArithmetic(new Date(), "-" + maxPersistenceDelayHours + "h");
-			Date lastSaveTime = new Date(getRuntimeStorage().getProvider().getAtomicLong("lastPersist", null));
-			if (lastSaveTime.before(threshold) && !getRuntimeStorage().getProvider().search(PersistenceLogEntry.UNIT_NAME, PersistenceLogEntry.class,
-				Criteria.gt("time", lastSaveTime.getTime()), null, 10).isEmpty()) {
+			Date lastProgress = new Date(getRuntimeStorage().getProvider().getAtomicLong("lastPersistProgress", null));
+			if (lastProgress.before(threshold) && persistenceBacklog() > 0) {
 				log.info("Persistence has stalled");
 				emergencyShutdown();
 				return true;
@@ -478,41 +773,115 @@ public class InMemoryDatabase extends DatabaseStorage {
 		return false;
 	}
 
+	/**
+	 * Write-behind backpressure. The pressure is the backlog (or lag - the age of the oldest not persisted log entry) relative to its threshold -
+	 * whichever is worse. Both are measured against the most advanced live persister (see persisterTimeoutMinutes).
+	 * It is re-evaluated once a second, so limits relax as soon as persisters catch up.
+	 * <ul>
+	 *   <li>below 1 - no throttling
+	 *   <li>1 to 2 - every commit is delayed proportionally, up to maxThrottleMillis
+	 *   <li>2 and more - overloaded: every tenant may commit up to overloadedTenantCommitsPerSecond transactions (delayed by maxThrottleMillis),
+	 *     the rest are rejected with DataStorageBusyException, so a few busy tenants don't starve others
+	 * </ul>
+	 */
+	@Override
+	protected void throttle(Integer tenantId) throws DataStorageBusyException {
+		double pressure = persistencePressure();
+		if (pressure < 1.0)
+			return;
+
+		if (pressure >= 2.0) {
+			if (!withinOverloadQuota(tenantId))
+				throw new DataStorageBusyException("Write-behind persistence is behind: retry later", maxThrottleMillis);
+			pause(maxThrottleMillis);
+		} else
+			pause((long)((pressure - 1.0) * maxThrottleMillis));
+	}
+
+	private double persistencePressure() {
+		if (persistence != PersistenceMode.WriteBehind || (throttleBacklog <= 0 && throttleLagMinutes <= 0))
+			return 0.0;
+
+		long now = System.currentTimeMillis();
+		if (now - pressureCheckedAt >= 1000L) {
+			pressureCheckedAt = now;
+
+			double result = 0.0;
+			long persisted = persistedSequence();
+			long backlog = getPersistenceLogHead() - persisted;
+			if (backlog > 0) {
+				if (throttleBacklog > 0)
+					result = backlog / (double)throttleBacklog;
+				if (throttleLagMinutes > 0)
+					result = Math.max(result, oldestUnpersistedAge(persisted, now) / (throttleLagMinutes * 60000.0));
+			}
+
+			if (result >= 1.0 && pressure < 1.0)
+				log.warn("Write-behind persistence is behind (backlog " + backlog + "): throttling commits");
+			else if (result < 1.0 && pressure >= 1.0)
+				log.info("Write-behind persistence caught up: stopped throttling commits");
+			pressure = result;
+		}
+		return pressure;
+	}
+
+	private boolean withinOverloadQuota(Integer tenantId) {
+		long second = System.currentTimeMillis() / 1000L;
+		if (second != quotaSecond)
+			synchronized (quotaUsed) {
+				if (second != quotaSecond) {
+					quotaUsed.clear();
+					quotaSecond = second;
+				}
+			}
+		return quotaUsed.computeIfAbsent(tenantId == null ? 0 : tenantId, t -> new AtomicInteger()).incrementAndGet() <= overloadedTenantCommitsPerSecond;
+	}
+
+	private static void pause(long millis) {
+		if (millis > 0)
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
 	@Override
 	protected void afterSave(Date now, List<StoredBean> allInserts, List<StoredBean> allUpdates, List<EntityDescriptor> deletes,
 							 List<InPlaceUpdate<?>> inPlaceUpdates) throws DataStorageException {
 		if (persistence == PersistenceMode.WriteBehind) {
-			Set<String> keys = new HashSet<>();
+			UnitRecordMap<Boolean> keys = new UnitRecordMap<Boolean>();
+
+			// Entities also updated in place may be processed after their logged state (e.g. by Ignite), so they are re-read from the grid
+			UnitRecordMap<Boolean> updatedInPlace = new UnitRecordMap<Boolean>();
+			if (persistencePayloads)
+				for (InPlaceUpdate<?> u : inPlaceUpdates)
+					if (u.getAffectedIds() != null)
+						for (long id : u.getAffectedIds())
+							updatedInPlace.put(u.getUnitName(), id, Boolean.TRUE);
 
 			List<PersistenceLogEntry.PersistenceLogRecord> pInserts = new ArrayList<PersistenceLogEntry.PersistenceLogRecord>();
 			for (StoredBean e : allInserts)
-				pInserts.add(new PersistenceLogEntry.PersistenceLogRecord(e.unitName(), e.getId()));
+				pInserts.add(new PersistenceLogEntry.PersistenceLogRecord(e.unitName(), e.getId(),
+					updatedInPlace.containsKey(e.unitName(), e.getId()) ? null : payload(e)));
 
 			List<PersistenceLogEntry.PersistenceLogRecord> pUpdates = new ArrayList<PersistenceLogEntry.PersistenceLogRecord>();
-			for (StoredBean e : allUpdates) {
-				String key = e.unitName() + "/" + e.getId();
-				if (!keys.contains(key)) {
-					keys.add(key);
-					pUpdates.add(new PersistenceLogEntry.PersistenceLogRecord(e.unitName(), e.getId()));
-				}
-			}
+			for (StoredBean e : allUpdates)
+				if (keys.put(e.unitName(), e.getId(), Boolean.TRUE) == null)
+					pUpdates.add(new PersistenceLogEntry.PersistenceLogRecord(e.unitName(), e.getId(),
+						updatedInPlace.containsKey(e.unitName(), e.getId()) ? null : payload(e)));
 
 			List<PersistenceLogEntry.PersistenceLogRecord> pDeletes = new ArrayList<PersistenceLogEntry.PersistenceLogRecord>();
-			for (EntityDescriptor d : deletes) {
-				String key = d.getUnit() + "/" + d.getId();
-				if (!keys.contains(key)) {
-					keys.add(key);
-					pDeletes.add(new PersistenceLogEntry.PersistenceLogRecord(d.getUnit(), d.getId()));
-				}
-			}
+			for (EntityDescriptor d : deletes)
+				for (long id : d.getIds())
+					if (keys.put(d.getUnit(), id, Boolean.TRUE) == null)
+						pDeletes.add(new PersistenceLogEntry.PersistenceLogRecord(d.getUnit(), id));
 
-			for (InPlaceUpdate<?> u : inPlaceUpdates) {
-				String key = u.getUnitName() + "/" + u.getId();
-				if (!keys.contains(key)) {
-					keys.add(key);
-					pUpdates.add(new PersistenceLogEntry.PersistenceLogRecord(u.getUnitName(), u.getId()));
-				}
-			}
+			for (InPlaceUpdate<?> u : inPlaceUpdates)
+				if (u.getAffectedIds() != null)
+					for (long id : u.getAffectedIds())
+						if (keys.put(u.getUnitName(), id, Boolean.TRUE) == null)
+							pUpdates.add(new PersistenceLogEntry.PersistenceLogRecord(u.getUnitName(), id));
 
 			PersistenceLogEntry log = createPersistenceLogEntry();
 			log.setId(getRuntimeStorage().getProvider().generateId(log.unitName()));
@@ -528,6 +897,13 @@ public class InMemoryDatabase extends DatabaseStorage {
 		}
 	}
 
+	/**
+	 * In-place updates don't have the resulting entity at hand, so they are logged w/o payloads, and persisters re-read those from the grid.
+	 */
+	private byte[] payload(StoredBean bean) {
+		return persistencePayloads ? SerializationDefinition.get(bean.getClass()).toBytes(bean) : null;
+	}
+
 	protected PersistenceLogEntry createPersistenceLogEntry() {
 		return getRuntimeStorage().getProvider().createPersistenceLogEntry();
 	}
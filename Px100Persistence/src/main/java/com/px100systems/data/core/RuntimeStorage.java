@@ -17,9 +17,11 @@
 package com.px100systems.data.core;
 
 import com.px100systems.data.plugin.storage.InMemoryStorageProvider;
+import com.px100systems.util.ParallelTasks;
 import org.springframework.beans.factory.annotation.Required;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Non-persistent in-memory storage aka "data grid". Used internally by the system and also can be used directly to manage transient objects.<br>
@@ -32,6 +34,7 @@ public class RuntimeStorage {
 	private InMemoryStorageProvider provider;
 	private TenantLoader tenantLoader;
 	private List<Class<?>> transientUnits = new ArrayList<>();
+	private int startupThreads = 8;
 
 	/**
 	 * Tenant Loader to create new units as tenants are being added.
@@ -41,6 +44,15 @@ public class RuntimeStorage {
 		this.tenantLoader = tenantLoader;
 	}
 
+	/**
+	 * The number of threads creating per-tenant transient units in parallel. 1 means sequentially. 8 by default.
+	 * @param startupThreads thread count
+	 */
+	@SuppressWarnings("unused")
+	public void setStartupThreads(int startupThreads) {
+		this.startupThreads = startupThreads;
+	}
+
 	/**
 	 * Data grid (Hazelcast, Ignite, etc.) storage provider.
 	 * @param provider storage provider.
@@ -58,9 +70,19 @@ public class RuntimeStorage {
 		return provider.generateId(idGeneratorName);
 	}
 
+	/**
+	 * Reserve a block of IDs in one round trip.
+	 * @param idGeneratorName ID generator name
+	 * @param count block size
+	 * @return the first ID of the block
+	 */
+	protected Long generateIds(String idGeneratorName, int count) {
+		return provider.generateIds(idGeneratorName, count) - count + 1;
+	}
+
 	public void onNewTenant(BaseTenantConfig tenant) throws DataStorageException {
-		for (Class<?> cls : transientUnits)
-			provider.createMap(cls, Entity.unitFromClass(cls, tenant.getId()), Entity.indexes(cls), Entity.compoundIndexes(cls), true);
+		ParallelTasks.run("Creating transient units for tenant " + tenant.getId(), transientUnits, startupThreads,
+			cls -> provider.createMap(cls, Entity.unitFromClass(cls, tenant.getId()), Entity.indexes(cls), Entity.compoundIndexes(cls), true));
 	}
 
 	/**
@@ -77,8 +99,10 @@ public class RuntimeStorage {
 		else
 			tenantIds.add(0);
 
-		for (Integer tenantId : tenantIds)
-			provider.createMap(cls, Entity.unitFromClass(cls, tenantId), Entity.indexes(cls), Entity.compoundIndexes(cls), true);
+		Map<String, Class<?>> indexes = Entity.indexes(cls);
+		List<CompoundIndexDescriptor> compoundIndexes = Entity.compoundIndexes(cls);
+		ParallelTasks.run("Creating transient units " + cls.getSimpleName(), tenantIds, startupThreads,
+			tenantId -> provider.createMap(cls, Entity.unitFromClass(cls, tenantId), indexes, compoundIndexes, true));
 	}
 
 	/**
@@ -21,12 +21,14 @@ import com.px100systems.data.plugin.storage.TraditionalStorageProvider;
 import com.px100systems.util.serialization.SerializationDefinition;
 import org.springframework.beans.factory.annotation.Required;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Traditional (remote) database like Mongo. Synchronizes its state of "tables" and "indexes" with the currently configured entities on startup.<br>
@@ -45,11 +47,11 @@ public class TraditionalDatabase extends DatabaseStorage {
 
 	@Override
 	protected void init(List<EntityInfo> entities, boolean initializeData) {
-		Map<String, List<String>> existingEntities = provider.getSchema(initializeData);
+		Map<String, List<String>> existingEntities = new ConcurrentHashMap<>(provider.getSchema(initializeData));
 
-		Map<String, Long> idGenerators = new HashMap<>();
+		Map<String, Long> idGenerators = new ConcurrentHashMap<>();
 
-		for (EntityInfo entity : entities) {
+		startupPhase("Synchronizing units", entities, entity -> {
 			List<String> indexes = existingEntities.get(entity.getUnitName());
 			if (indexes == null)
 				provider.createEntity(entity.getUnitName(), entity.getIndexes().keySet(), entity.getCompoundIndexes());
@@ -86,23 +88,15 @@ public class TraditionalDatabase extends DatabaseStorage {
 				try {
 					Entity e = (Entity)entity.getEntityClass().newInstance();
 					e.setTenantId(entity.getTenantId());
-					String idGenerator = e.idGeneratorName();
-					Long id = idGenerators.get(idGenerator);
-					if (id == null)
-						id = -1L;
-					if (maxId > id)
-						idGenerators.put(idGenerator, maxId);
+					idGenerators.merge(e.idGeneratorName(), maxId, Math::max);
 				} catch (Exception e) {
 					throw new RuntimeException(e);
 				}
 			}
-		}
+		});
 
-		for (String unitName : existingEntities.keySet())
-			provider.dropEntity(unitName);
-
-		for (Map.Entry<String, Long> e : idGenerators.entrySet())
-			getRuntimeStorage().createIdGenerator(e.getKey(), e.getValue());
+		startupPhase("Dropping units", existingEntities.keySet(), provider::dropEntity);
+		startupPhase("Creating ID generators", idGenerators.entrySet(), e -> getRuntimeStorage().createIdGenerator(e.getKey(), e.getValue()));
 	}
 
 	@Override
@@ -110,6 +104,17 @@ public class TraditionalDatabase extends DatabaseStorage {
 		return provider.get(unitName, cls, id);
 	}
 
+	@Override
+	protected <T> Map<Long, T> getAll(String unitName, Class<T> cls, Collection<Long> ids) {
+		Map<Long, T> result = new HashMap<>();
+		if (ids.isEmpty())
+			return result;
+
+		for (T bean : provider.search(unitName, cls, Criteria.in("id", ids.toArray(new Long[ids.size()])), null, ids.size()))
+			result.put(((StoredBean)bean).getId(), bean);
+		return result;
+	}
+
 	@Override
 	protected long count(String unitName, Class<?> cls, Criteria criteria) {
 		return provider.count(unitName, cls, criteria);
@@ -133,6 +138,11 @@ public class TraditionalDatabase extends DatabaseStorage {
 		return new ArrayList<>();
 	}
 
+	@Override
+	protected void importChunk(Date now, List<StoredBean> inserts) throws DataStorageException {
+		provider.save(inserts, new ArrayList<StoredBean>(), new ArrayList<Delete>());
+	}
+
 	@Override
 	protected void shutdown() {
 		getRuntimeStorage().getProvider().shutdown();
@@ -17,8 +17,17 @@
 package com.px100systems.data.core;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import com.px100systems.data.plugin.storage.EntityCursor;
 import com.px100systems.util.serialization.SerializationDefinition;
 
@@ -26,6 +35,8 @@ import com.px100systems.util.serialization.SerializationDefinition;
  * Consumer interface with the data cluster: read or write transaction.<br>
  * Business logic code should only interact with Transaction instead of DatabaseStorage.<br>
  * Transaction is always limited to one tenant. use tenant ID zero for single-tenant systems.<br>
+ * Transaction keeps an identity map: entities read by ID or enqueued for insert/update are returned by {@link #get} and {@link #getAll}
+ * without going to the storage again.<br>
  * 
  * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
  * @author Alex Rogachevsky
@@ -42,6 +53,8 @@ public class Transaction {
 	private List<Delete> deletes = new ArrayList<Delete>();
 	private List<InPlaceUpdate<?>> inPlaceUpdates = new ArrayList<>();
 
+	private Map<Class<?>, Map<Long, Entity>> identityMap = new HashMap<>(); // null values mark deleted entities
+
 	protected Transaction(DatabaseStorage ds, Integer tenantId) {
 		this.ds = ds;
 		this.tenantId = tenantId;
@@ -82,6 +95,7 @@ public class Transaction {
 			}
 			entity.setOperationOrderNo(orderNo++);
 			inserts.add(entity);
+			remember(entity.getClass(), entity.getId(), entity);
 		}
 	}
 	
@@ -91,6 +105,7 @@ public class Transaction {
 	 * @param optimisticCheck check if the record has already been updated/deleted at the time of commit
 	 */
 	public void update(Entity entity, boolean optimisticCheck) {
+		checkTenant(entity);
 		for (int i = 0, n = inserts.size(); i < n; i++) {
 			Entity e =  inserts.get(i); 
 			if (e.getClass().equals(entity.getClass()) && e.getId().equals(entity.getId()))
@@ -112,11 +127,13 @@ public class Transaction {
 		}
 
 		entity.setOperationOrderNo(orderNo++);
-		if (ds != null && ds.isActive())
+		if (ds != null && ds.isActive()) {
 			if (optimisticCheck)
 				optimisticUpdates.add(entity);
 			else 
 				updates.add(entity);
+			remember(entity.getClass(), entity.getId(), entity);
+		}
 	}
 
 	/**
@@ -131,7 +148,34 @@ public class Transaction {
 	 * @param <T> bean class
 	 */
 	public <T>void update(Class<T> cls, Long id, EntityProcessor<T> processor) {
-		inPlaceUpdates.add(new InPlaceUpdate<>(orderNo++, cls, id, tenantId, processor));
+		if (ds != null && ds.isActive()) {
+			inPlaceUpdates.add(new InPlaceUpdate<>(orderNo++, cls, id, tenantId, processor));
+			Map<Long, Entity> entities = identityMap.get(ds.entityClass(cls));
+			if (entities != null)
+				entities.remove(id);
+		}
+	}
+
+	/**
+	 * Process all entities matching the criteria in storage (member-side) without pulling them to the client, e.g. "archive all orders modified before X".<br>
+	 * Not supported by traditional databases. Same Hazelcast caveats as {@link #update(Class, Long, EntityProcessor)}.
+	 * Additionally, a Hazelcast transaction consisting of this update alone is not rolled back if the processor fails on some entities:
+	 * those already processed stay updated. Otherwise (with other operations) matched entities are copied to the client as rollback images.<br>
+	 *
+	 * @param cls bean class
+	 * @param criteria filter
+	 * @param processor entry processor callback/lambda to do something with each bean
+	 * @param <T> bean class
+	 * @return the update which reports affected entity IDs (getAffectedIds()) after commit. They are also logged for write-behind.
+	 */
+	public <T> InPlaceUpdate<T> updateWhere(Class<T> cls, Criteria criteria, EntityProcessor<T> processor) {
+		validateCriteria(cls, criteria);
+		InPlaceUpdate<T> result = new InPlaceUpdate<>(orderNo++, cls, tenantId, scope(cls, criteria), processor);
+		if (ds != null && ds.isActive()) {
+			inPlaceUpdates.add(result);
+			identityMap.remove(ds.entityClass(cls));
+		}
+		return result;
 	}
 
 	/**
@@ -141,8 +185,10 @@ public class Transaction {
 	 */
 	public void deleteWithDependents(Entity entity) {
 		if (ds != null && ds.isActive()) {
+			checkTenant(entity);
 			entity.cascadeDelete();
 			deletes.add(new Delete(orderNo++, entity));
+			remember(entity.getClass(), entity.getId(), null);
 		}
 	}
 	
@@ -154,12 +200,14 @@ public class Transaction {
 	 */
 	public void delete(Class<? extends StoredBean> entityClass, Criteria criteria) {
 		validateCriteria(entityClass, criteria);
-		if (ds != null && ds.isActive())
-			deletes.add(new Delete(orderNo++, entityClass, tenantId, criteria));
+		if (ds != null && ds.isActive()) {
+			deletes.add(new Delete(orderNo++, entityClass, tenantId, scope(entityClass, criteria)));
+			identityMap.remove(ds.entityClass(entityClass));
+		}
 	}
 
 	/**
-	 * Get entity by ID.
+	 * Get entity by ID. Returns the same bean for the life of the transaction, including the ones enqueued for insert or update.
 	 *
 	 * @param entityClass bean class
 	 * @param id entity ID
@@ -171,8 +219,76 @@ public class Transaction {
 		if (ds == null || !ds.isActive())
 			return null;
 
-		entityClass = (Class<T>)ds.entityClass(entityClass.getSimpleName());
-		return ds.get(Entity.unitFromClass(entityClass, tenantId), entityClass, id);
+		entityClass = (Class<T>)ds.entityClass(entityClass);
+
+		Map<Long, Entity> entities = identityMap.get(entityClass);
+		if (entities != null && entities.containsKey(id))
+			return (T)entities.get(id);
+
+		T result = ds.get(Entity.unitFromClass(entityClass, tenantId), entityClass, id);
+		if (result == null || !ownTenant(result))
+			return null;
+		remember(entityClass, id, result);
+		return result;
+	}
+
+	/**
+	 * Get several entities by ID in one round trip - only the ones not seen by this transaction yet are actually fetched.
+	 *
+	 * @param entityClass bean class
+	 * @param ids entity IDs
+	 * @param <T> bean class
+	 * @return found beans by ID in the requested order (missing ones are omitted)
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> Map<Long, T> getAll(Class<T> entityClass, Collection<Long> ids) {
+		Map<Long, T> result = new LinkedHashMap<>();
+		if (ds == null || !ds.isActive())
+			return result;
+
+		entityClass = (Class<T>)ds.entityClass(entityClass);
+
+		Map<Long, Entity> entities = identityMap.get(entityClass);
+		Set<Long> missing = new HashSet<>();
+		for (Long id : ids)
+			if (entities == null || !entities.containsKey(id))
+				missing.add(id);
+
+		Map<Long, T> fetched = missing.isEmpty() ? Collections.<Long, T>emptyMap() :
+			ds.getAll(Entity.unitFromClass(entityClass, tenantId), entityClass, missing);
+		for (Map.Entry<Long, T> e : fetched.entrySet())
+			if (ownTenant((Entity)e.getValue()))
+				remember(entityClass, e.getKey(), e.getValue());
+
+		entities = identityMap.get(entityClass);
+		if (entities != null)
+			for (Long id : ids) {
+				Entity entity = entities.get(id);
+				if (entity != null)
+					result.put(id, (T)entity);
+			}
+		return result;
+	}
+
+	/**
+	 * Shared units are keyed by ID alone: entities of other tenants are neither returned nor changed by the transaction.
+	 */
+	private boolean ownTenant(Entity entity) {
+		return tenantId == null || !UnitDescriptor.get(entity.getClass(), tenantId).isShared() || tenantId.equals(entity.getTenantId());
+	}
+
+	private void checkTenant(Entity entity) {
+		if (!ownTenant(entity))
+			throw new RuntimeException(entity.getClass().getSimpleName() + " " + entity.getId() + " belongs to another tenant");
+	}
+
+	private void remember(Class<?> entityClass, Long id, Entity entity) {
+		Map<Long, Entity> entities = identityMap.get(entityClass);
+		if (entities == null) {
+			entities = new HashMap<>();
+			identityMap.put(entityClass, entities);
+		}
+		entities.put(id, entity);
 	}
 
 	/**
@@ -187,7 +303,7 @@ public class Transaction {
 		if (ds == null || !ds.isActive())
 			return 0;
 
-		return ds.count(Entity.unitFromClass(ds.entityClass(entityClass.getSimpleName()), tenantId), entityClass, criteria);
+		return ds.count(Entity.unitFromClass(ds.entityClass(entityClass), tenantId), entityClass, scope(entityClass, criteria));
 	}
 
 	/**
@@ -229,9 +345,9 @@ public class Transaction {
 		if (ds == null || !ds.isActive())
 			return null;
 		
-		entityClass = (Class<T>)ds.entityClass(entityClass.getSimpleName());
+		entityClass = (Class<T>)ds.entityClass(entityClass);
 
-		return ds.search(Entity.unitFromClass(entityClass, tenantId), entityClass, criteria, orderBy, limit);
+		return ds.search(Entity.unitFromClass(entityClass, tenantId), entityClass, scope(entityClass, criteria), orderBy, limit);
 	}
 
 	/**
@@ -250,9 +366,9 @@ public class Transaction {
 		if (ds == null || !ds.isActive())
 			return null;
 
-		entityClass = (Class<T>)ds.entityClass(entityClass.getSimpleName());
+		entityClass = (Class<T>)ds.entityClass(entityClass);
 
-		return ds.search(Entity.unitFromClass(entityClass, tenantId), entityClass, criteria, orderBy);
+		return ds.search(Entity.unitFromClass(entityClass, tenantId), entityClass, scope(entityClass, criteria), orderBy);
 	}
 
 	/**
@@ -271,9 +387,11 @@ public class Transaction {
 		
 		if (!ds.isActive())
 			return false;
+
+		ds.throttle(tenantId);
 		
 		for (Entity entity : optimisticUpdates) {
-			Entity savedEntity = get(entity.getClass(), entity.getId());
+			Entity savedEntity = ds.get(entity.unitName(), entity.getClass(), entity.getId());
 			if (savedEntity == null || savedEntity.getModifiedAt().after(entity.getModifiedAt()))
 				throw new DataStorageException("stale");
 		}
@@ -300,11 +418,42 @@ public class Transaction {
 			allUpdates.add(e);
 		}
 
-		ds.afterSave(now, allInserts, allUpdates, ds.save(allInserts, allUpdates, deletes, inPlaceUpdates), inPlaceUpdates);
+		ds.commit(now, allInserts, allUpdates, deletes, inPlaceUpdates);
 		committed = true; // once committed, cannot do it again
 		return true;
 	}
 
+	/**
+	 * Asynchronous commit on a dedicated executor (see {@link DatabaseStorage#getAsyncCommitExecutor}) - does not block the caller
+	 * on the grid transaction and write-through database latency.<br>
+	 * Async commits of different transactions can complete in any order, so use {@link #commit} when the subsequent code needs to read its own writes.
+	 * The transaction must not be changed after this call.
+	 *
+	 * @return the future completed with the {@link #commit} result or its exception
+	 */
+	public CompletableFuture<Boolean> commitAsync() {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		try {
+			ds.getAsyncCommitExecutor().execute(() -> {
+				try {
+					result.complete(commit());
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Injects the tenant predicate for entities stored in shared (all-tenant) units. See {@link DatabaseStorage}.
+	 */
+	private Criteria scope(Class<?> entityClass, Criteria criteria) {
+		return UnitDescriptor.get(entityClass, tenantId).scope(criteria);
+	}
+
 	private void validateCriteria(Class<?> entityClass, Criteria criteria) {
 		if (criteria != null) {
 			SerializationDefinition def = SerializationDefinition.get(entityClass);
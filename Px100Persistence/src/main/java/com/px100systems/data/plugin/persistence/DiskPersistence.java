@@ -16,21 +16,42 @@
  */
 package com.px100systems.data.plugin.persistence;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import com.google.gson.Gson;
+import com.px100systems.data.core.Entity;
 import com.px100systems.data.core.InMemoryDatabase;
 import com.px100systems.data.core.EntityDescriptor;
-import com.px100systems.data.plugin.storage.EntityCursor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
 import com.px100systems.data.core.RawRecord;
+import com.px100systems.data.core.UnitDescriptor;
+import com.px100systems.data.core.UnitRecordMap;
+import com.px100systems.util.serialization.SerializationDefinition;
+import com.px100systems.util.MetricsRegistry;
 import com.px100systems.data.plugin.persistence.PersistenceProvider.Connection;
 
 /**
@@ -53,16 +74,50 @@ import com.px100systems.data.plugin.persistence.PersistenceProvider.Connection;
  * Correlated transactional updates should be rare (avoided) anyway - operations should be atomic in terms of data beans (documents, WIs, etc.)
  * If that presents a problem, the mode can be turned off.<br>
  * <br>
+ * The persistence log is a journal: every entry ID is a cluster-wide sequence number. Persisters read it by offset (batches of keys - no searches or sorting)
+ * and remember the last processed one, so they resume exactly where they left off. The time-based lookup is only done once on (re)start.<br>
+ * <br>
+ * Every write-behind is a pipeline connected by bounded queues, so the cluster and the database are busy at the same time:
+ * journal reader -> record fetchers -> merger -> serializers -> database writer. The reader, merger, and writer are single-threaded
+ * and preserve the journal order, so merging works exactly the same way as if everything was done sequentially.<br>
+ * Log entries carrying entity payloads (see InMemoryDatabase.persistencePayloads) are just deserialized by fetchers w/o reading the grid.<br>
+ * <br>
+ * By default every persister writes everything, so adding persisters adds redundancy, but not throughput. Sharded persisters split storages
+ * among members of their replica group instead (see {@link PersisterShards}): persisters of one group share their database(s)
+ * (e.g. per-storage JDBC data sources), and every group keeps a full copy. They still read the whole (lightweight) journal,
+ * but only fetch, serialize, and write records of their own storages. All persisters of the cluster should use the same mode.<br>
+ * <br>
  *
  * <b>Configuration:</b><br>
  * <ul>
  *   <li>provider - persistence provider that reads and writes data to the datrabase
  *   <li>mergeUpdates - (enabled by default - rarely changed) try to merge accumulated (later) updates after inserts and deletes after updates for the same record to minimize the number of database operations
- *   <li>logEntriesPerTransaction - how many update database operations to batch in one database transaction
- *   <li>writeBehindSeconds - write-behind interval (default is 2 minutes)
+ *   <li>recordsPerTransaction - how many merged records (inserts, updates, and deletes) to save in one database transaction while caught up
+ *   <li>maxRecordsPerTransaction - database transactions grow (up to this size) proportionally to the backlog when catching up
+ *   <li>logEntriesPerTransaction - optional limit of persistence log entries (cluster transactions) per database transaction (no limit by default)
+ *   <li>writeBehindSeconds - normal write-behind interval (default is 2 minutes)
+ *   <li>minWriteBehindSeconds - the interval is halved (down to this) after every run that still left a backlog
+ *   <li>maxWriteBehindSeconds - the interval is doubled (up to this) after every idle run
  *   <li>cleanupHours - the period to keep update log entries in memory in case some (other) persisters were slow, down, and otherwise did not catch up
  *      see DataStorage.maxPersistenceDelayHours parameter - it controls the maximum persistence delay for any persister (if one caught up, that is good enough)
  *   <li>compactHours - only relevant for MapDB and similar persistence providers (has no effect for JDBC providers)
+ *   <li>metricsRegistry - optional pluggable registry to report lag and throughput metrics to (see {@link PersisterMetrics})
+ *   <li>jmxEnabled - expose the same metrics via JMX (enabled by default)
+ *   <li>nodeName - persister name for metrics (the host name by default)
+ *   <li>journalBatchSize - how many persistence log entries to read from the cluster in one round trip
+ *   <li>journalGapSeconds - how long to wait for a missing (in flight) persistence log entry before skipping it as a failed transaction (default is 1 minute)
+ *   <li>fetchThreads - how many threads fetch records referenced by persistence log batches from the cluster
+ *   <li>serializeThreads - how many threads serialize fetched records
+ *   <li>pipelineDepth - how many batches (of each stage) may wait for the next stage
+ *   <li>sharded - split storages among persisters of the same replica group instead of writing everything (off by default)
+ *   <li>replica - replica group of this persister (0 to replicationFactor - 1) in the sharded mode
+ *   <li>replicationFactor - how many replica groups (full copies) exist in the sharded mode: one by default
+ *   <li>shardLeaseSeconds - storages of a crashed persister are claimed by others after this (default is 10 minutes).
+ *      Write-behind intervals are capped at a third of it.
+ *   <li>peers - optional providers reading other persisters' databases by their names (see start()) for peer-assisted catch-ups
+ *   <li>peerName - the (cluster-wide unique) name this persister reports progress under, also for others to find it among their peers (nodeName by default)
+ *   <li>peerTimeoutSeconds - peers that haven't reported progress for this long are not used (default is 20 minutes)
+ *   <li>peerCatchUpEntries - how many journal entries a peer should be ahead to read records from it instead of the grid
  * </ul>
  *
  * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
@@ -71,17 +126,61 @@ import com.px100systems.data.plugin.persistence.PersistenceProvider.Connection;
 public class DiskPersistence {
 	private static Log log = LogFactory.getLog(DiskPersistence.class);
 
+	private static final long STAGE_POLL_SECONDS = 1L; // the writer checks if it was stopped
+
 	private PersistenceProvider provider;
 	private InMemoryDatabase storage;
 	
-	private ScheduledThreadPoolExecutor scheduler = null; 
+	private volatile ScheduledThreadPoolExecutor scheduler = null; 
 	private boolean mergeUpdates = true;
-	private int logEntriesPerTransaction = 20;
+	private int logEntriesPerTransaction = 0;
+	private int recordsPerTransaction = 200;
+	private int maxRecordsPerTransaction = 5000;
 	private int writeBehindSeconds = 120; 
+	private int minWriteBehindSeconds = 5;
+	private int maxWriteBehindSeconds = 600;
 	private int cleanupHours = 25;  
 	private int compactHours = 3; 
 	
+	private int journalBatchSize = 500;
+	private int journalGapSeconds = 60;
+
 	private Long lastSaveTime = null;
+	private volatile Long lastSequence = null;
+	private final JournalGaps gaps = new JournalGaps();
+	private final Gson gson = RawRecord.createGson();
+
+	private int fetchThreads = 2;
+	private int serializeThreads = 2;
+	private int pipelineDepth = 4;
+	private ExecutorService stages = null;
+	private ExecutorService fetchers = null;
+	private ExecutorService serializers = null;
+	private volatile boolean cancelled = false;
+	private int transactionRecords;
+
+	private MetricsRegistry metricsRegistry = null;
+	private boolean jmxEnabled = true;
+	private String nodeName = null;
+	private PersisterMetrics metrics = null;
+	private Map<String, String> unitStorages = new ConcurrentHashMap<String, String>();
+	private int delaySeconds;
+
+	private boolean sharded = false;
+	private int replica = 0;
+	private int replicationFactor = 1;
+	private int shardLeaseSeconds = 600;
+	private PersisterShards shards = null;
+	private volatile Map<String, Long> shardStart = null; // owned storages -> the last journal entry persisted before this run
+	private long startSequence;
+	private long clusterProgressAt = 0L;
+
+	private Map<String, PersistenceProvider> peers = null;
+	private String peerName = null;
+	private int peerTimeoutSeconds = 1200;
+	private int peerCatchUpEntries = 1000;
+	private volatile PersistenceProvider peer = null; // the peer of the current run if any
+	private volatile long peerSequence = 0L;
 	
 	public DiskPersistence() {
 	}
@@ -99,12 +198,13 @@ public class DiskPersistence {
 	 * <br>
 	 * Generally persistence server catch-ups should be fine (especially with merges), however large tenant deployments may generate frequent updates<br>
 	 * Every restarted persistence server would put a (read) load on the cluster similar to DDoS attacks<br>
-	 * Possible solution (for the future):
+	 * Peer-assisted catch-up (see peers):
 	 * <ul>
-     *   <li>read persistence log entries from the cluster, but the data itself from another (paired) working database that is guaranteed ahead by lastSaveTime
-     *   <li>if such server is running (the restarted is not the last/only one) - otherwise normal catchup
-     *     automatic cluster-wide discovery of such running persistence server (persisters should register their credentials in the cluster)
-     *   <li>should slow down write-behinds due to possible read/write collisions, but databases handle it well, and write-behinds are running in the background
+	 *   <li>every persister registers its name, last persisted journal entry, and lastSaveTime in the cluster after every write-behind
+	 *   <li>a lagging (e.g. restarted) persister picks the most advanced healthy registered peer it can read (configured in peers) that is ahead by peerCatchUpEntries
+	 *   <li>it reads persistence log entries from the cluster, but bulk-loads records of entries the peer already persisted from the peer's database
+	 *   <li>entries beyond the peer's progress, or all of them if there is no such peer or it fails, are caught up from the grid normally
+	 *   <li>peer databases handle the extra reads well, as their write-behinds run in the background
 	 * </ul>
 	 */
 	public void start() {
@@ -124,26 +224,51 @@ public class DiskPersistence {
 		if (scheduler != null) {
 			scheduler.shutdown();
 			scheduler = null;
+			stopPipeline();
+			if (shards != null)
+				shards.release();
 			log.info("Stopped in-memory data storage persistence");
 		}
 	}
 
+	private void startPipeline() {
+		stages = Executors.newFixedThreadPool(2); // reader and merger
+		fetchers = Executors.newFixedThreadPool(fetchThreads);
+		serializers = Executors.newFixedThreadPool(serializeThreads);
+	}
+
+	private void stopPipeline() {
+		if (stages != null) {
+			stages.shutdownNow();
+			fetchers.shutdown();
+			serializers.shutdown();
+			stages = null;
+		}
+	}
+
 	/**
 	 * Resumes the stopped server
 	 */
 	public void resume() {
-		if (scheduler != null)
+		if (scheduler != null) {
 			scheduler.shutdown();
-		scheduler = new ScheduledThreadPoolExecutor(1); // One thread should be fine. Write-behind nature is single-threaded
+			stopPipeline();
+		}
+		scheduler = new ScheduledThreadPoolExecutor(1); // The scheduler thread is the (single) writer stage of the pipeline
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // shutdown only lets the current run finish
+		startPipeline();
+		if (sharded && shards == null) {
+			if (replica < 0 || replica >= replicationFactor)
+				throw new RuntimeException("Persister replica " + replica + " should be between 0 and replicationFactor - 1");
+			shards = new PersisterShards(storage, provider.storage(), replica, replicationFactor, shardLeaseSeconds);
+		}
+		if (metrics == null)
+			metrics = new PersisterMetrics(nodeName(), metricsRegistry, jmxEnabled, () -> backlog(), () -> oldestUnpersistedAge());
 
 		persist();
 
-		scheduler.scheduleAtFixedRate(new Runnable() {
-			@Override
-			public void run() {
-				persist();
-			}
-		}, writeBehindSeconds, writeBehindSeconds, TimeUnit.SECONDS);
+		delaySeconds = writeBehindSeconds;
+		schedulePersist();
 		
 		scheduler.scheduleAtFixedRate(new Runnable() {
 			@Override
@@ -162,6 +287,43 @@ public class DiskPersistence {
 		log.info("Started in-memory data storage persistence");
 	}
 
+	private void schedulePersist() {
+		ScheduledThreadPoolExecutor s = scheduler;
+		if (s != null && !s.isShutdown())
+			try {
+				s.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							adjustDelay(persist());
+						} catch (RuntimeException e) {
+							log.error("Write-behind failed", e);
+							delaySeconds = writeBehindSeconds;
+						}
+						schedulePersist();
+					}
+				}, shards == null ? delaySeconds : Math.min(delaySeconds, Math.max(1, shardLeaseSeconds / 3)), TimeUnit.SECONDS);
+			} catch (RejectedExecutionException ignored) { // stopped
+			}
+	}
+
+	/**
+	 * Adaptive write-behind interval: shorter while there is a backlog (more transactions arrived during the run or it is waiting on a gap),
+	 * longer when idle, and back to writeBehindSeconds otherwise.
+	 */
+	private void adjustDelay(int processedLogEntries) {
+		if (scheduler == null)
+			return;
+
+		long backlog = storage.getPersistenceLogHead() - lastSequence;
+		if (backlog > 0 || processedLogEntries >= journalBatchSize)
+			delaySeconds = Math.max(minWriteBehindSeconds, delaySeconds / 2);
+		else if (processedLogEntries == 0)
+			delaySeconds = Math.min(maxWriteBehindSeconds, delaySeconds * 2);
+		else
+			delaySeconds = writeBehindSeconds;
+	}
+
 	/**
 	 * Flush the remaining data at the time of this call) to disk. Called by the Spring container shutdown via DataStorage.destroy().
 	 */
@@ -169,8 +331,22 @@ public class DiskPersistence {
 		if (scheduler != null) {
 			log.info("Flushing in-memory data storage to disk");
 			scheduler.shutdown();
-			persist();
+			boolean idle = true; // the final run shouldn't overlap a scheduled one
+			try {
+				if (!scheduler.awaitTermination(STAGE_POLL_SECONDS, TimeUnit.SECONDS)) {
+					log.info("Waiting for the current write-behind to finish");
+					scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Flush interrupted: the remaining data will be persisted on restart");
+				idle = false;
+			}
+			if (idle)
+				persist();
 			stop();
+			metrics.close();
+			metrics = null;
 		}
 	}
 
@@ -230,94 +406,476 @@ public class DiskPersistence {
 		return provider.unitStorage(unitName);
 	}
 	
-	private void persist() {
+	/**
+	 * Journal batch: log entries to process in order, w/o skipped gaps
+	 */
+	private static class JournalBatch {
+		private List<PersistenceLogEntry> entries; // null marks the end of the run
+		private long sequence; // the last processed journal entry (including skipped gaps)
+		private Map<String, Map<Long, Entity>> records;
+		private Map<PersistenceLogEntry.PersistenceLogRecord, Entity> payloads;
+
+		public JournalBatch(List<PersistenceLogEntry> entries, long sequence) {
+			this.entries = entries;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Merged log entries saved in one database transaction
+	 */
+	private static class Chunk {
+		private UnitRecordMap<Entity> insertsOrUpdates = new UnitRecordMap<Entity>();
+		private UnitRecordMap<Boolean> deletes = new UnitRecordMap<Boolean>();
+		private List<RawRecord> records;
+		private List<EntityDescriptor> deleteDescriptors;
+		private int count = 0;
+		private Long lastTransactionTime = null;
+		private long sequence;
+		private boolean last = false;
+	}
+
+	/**
+	 * One write-behind run: until the journal head (or an unexpired gap)
+	 * @return processed log entries
+	 */
+	private int persist() {
 		int processedLogEntries = 0;
 		Long fromTime = lastSaveTime;
-		
-		Map<String, RawRecord> insertsOrUpdates = new HashMap<String, RawRecord>();
-		Map<String, EntityDescriptor> deletes = new HashMap<String, EntityDescriptor>();
-		int count = 0;
-		
+
+		if (lastSequence == null) {
+			lastSequence = storage.getPersistenceLogStart(lastSaveTime) - 1;
+			startSequence = lastSequence;
+		}
+
+		if (shards != null && !claimShards())
+			return processedLogEntries;
+
+		metrics.runStarted();
+		choosePeer();
+		long backlog = storage.getPersistenceLogHead() - lastSequence;
+		transactionRecords = (int)Math.min(maxRecordsPerTransaction, recordsPerTransaction * Math.max(1L, backlog / journalBatchSize));
+
+		BlockingQueue<CompletableFuture<JournalBatch>> fetched = new ArrayBlockingQueue<CompletableFuture<JournalBatch>>(pipelineDepth);
+		BlockingQueue<CompletableFuture<Chunk>> chunks = new ArrayBlockingQueue<CompletableFuture<Chunk>>(pipelineDepth);
+		CountDownLatch stagesDone = new CountDownLatch(2);
+		cancelled = false;
+		long from = lastSequence;
+		Future<?> reader = stages.submit(() -> read(from, fetched, stagesDone));
+		Future<?> merger = stages.submit(() -> merge(fetched, chunks, stagesDone));
+
 		Connection conn = provider.open();
 		try {
-			Long lastTransactionTime = null;
+			while (true) { // the writer: saves chunks in the journal order
+				CompletableFuture<Chunk> next = chunks.poll(STAGE_POLL_SECONDS, TimeUnit.SECONDS);
+				if (next == null) {
+					if (scheduler == null) // stopped in the middle
+						return processedLogEntries;
+					continue;
+				}
 
-			EntityCursor<PersistenceLogEntry> cursor = storage.getPersistenceLog(fromTime);
+				Chunk chunk = next.join();
+				if (chunk.count > 0) {
+					if (scheduler == null)
+						return processedLogEntries;
+					if (shards != null)
+						shards.renew();
+					long start = System.currentTimeMillis();
+					try {
+						provider.transactionalSave(conn, chunk.records, chunk.deleteDescriptors, chunk.lastTransactionTime);
+					} catch (PersistenceProviderException e) {
+						metrics.writeFailed();
+						throw e;
+					}
+					metrics.written(writtenByStorage(chunk), deletedByStorage(chunk), System.currentTimeMillis() - start);
+					lastSaveTime = chunk.lastTransactionTime;
+					processedLogEntries += chunk.count;
+				}
+				if (chunk.sequence != lastSequence) {
+					if (shards == null)
+						storage.logSaveTime(peerName(), lastSaveTime, chunk.sequence);
+					else
+						shardProgress(chunk.sequence, chunk.last);
+					metrics.saved(lastSaveTime);
+				}
+				lastSequence = chunk.sequence; // everything up to it is either saved or skipped
+				if (chunk.last)
+					break;
+			}
+		} catch (PersistenceProviderException e) {
+			// Ignoring errors (e.g. database down) for now: the server will retry during its next write-behind
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return processedLogEntries;
+		} catch (CompletionException e) {
+			if (scheduler == null) // stopped in the middle
+				return processedLogEntries;
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+		} finally {
+			conn.close();
+
+			cancelled = true;
+			reader.cancel(true);
+			merger.cancel(true);
 			try {
-				for (Iterator<PersistenceLogEntry> i = cursor.iterator(); i.hasNext();) {
-					while (i.hasNext()) {
-						if (scheduler == null)
-							return;
-
-						PersistenceLogEntry transaction = i.next();
-						lastTransactionTime = transaction.getTime();
-						Date transactionTime = new Date(lastTransactionTime);
-
-						List<PersistenceLogEntry.PersistenceLogRecord> insertsUpdates = new ArrayList<PersistenceLogEntry.PersistenceLogRecord>(transaction.getNewEntities());
-						insertsUpdates.addAll(transaction.getUpdatedEntities());
-						for (PersistenceLogEntry.PersistenceLogRecord r : insertsUpdates) {
-							RawRecord record = storage.getPersistenceRecord(r.getUnitName(), r.getId());
-							if (record != null) {
-								if (mergeUpdates && record.getLastUpdate().after(transactionTime))
-									continue;
-
-								String key = r.getUnitName() + "_" + r.getId();
-								if (insertsOrUpdates.containsKey(key) || deletes.containsKey(key))
-									continue;
-
-								insertsOrUpdates.put(key, record);
-							}
-						}
+				stagesDone.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 
-						for (PersistenceLogEntry.PersistenceLogRecord r : transaction.getDeletedEntities()) {
-							String key = r.getUnitName() + "_" + r.getId();
-							if (insertsOrUpdates.containsKey(key))
-								insertsOrUpdates.remove(key);
+			gaps.passed(lastSequence);
+			metrics.runFinished(processedLogEntries);
+		}
 
-							if (!deletes.containsKey(key))
-								deletes.put(key, new EntityDescriptor(null, r.getId(), r.getUnitName()));
-						}
+		if (shards == null) // heartbeat: idle persisters are still live (see InMemoryDatabase.persisterTimeoutMinutes) and usable as peers
+			storage.logSaveTime(peerName(), lastSaveTime, lastSequence);
+		log.info("Persisted " + processedLogEntries + " transactions since " + fromTime + " up to journal entry " + lastSequence);
+		return processedLogEntries;
+	}
+
+	private String peerName() {
+		return peerName != null ? peerName : nodeName();
+	}
+
+	/**
+	 * The most advanced healthy peer ahead by at least peerCatchUpEntries. Sharded persisters don't use peers: their groups share databases.
+	 */
+	private void choosePeer() {
+		peer = null;
+		if (peers == null || shards != null)
+			return;
+
+		long now = System.currentTimeMillis();
+		long best = lastSequence + peerCatchUpEntries;
+		String bestName = null;
+		long bestSaved = 0L;
+		for (Map.Entry<String, PersistenceProvider> e : peers.entrySet()) {
+			String name = e.getKey();
+			if (name.equals(peerName()))
+				continue;
+
+			long[] progress = storage.getPersisterProgress(name);
+			if (now - progress[2] <= peerTimeoutSeconds * 1000L && progress[0] >= best) {
+				best = progress[0];
+				bestName = name;
+				bestSaved = progress[1];
+			}
+		}
+
+		if (bestName != null) {
+			peerSequence = best;
+			peer = peers.get(bestName);
+			log.info("Catching up from peer " + bestName + " (saved at " + bestSaved + ") up to journal entry " + best);
+		}
+	}
+
+	/**
+	 * Records of the batch: from the peer if it already persisted all of them, otherwise from the grid
+	 */
+	private Map<String, Map<Long, Entity>> fetchRecords(JournalBatch batch) {
+		Map<String, Set<Long>> ids = referencedRecords(batch.entries);
+
+		PersistenceProvider p = peer;
+		if (p != null && batch.sequence <= peerSequence)
+			try {
+				Map<String, Map<Long, Entity>> result = new HashMap<String, Map<Long, Entity>>();
+				for (Map.Entry<String, Set<Long>> e : ids.entrySet()) {
+					Map<Long, Entity> records = new HashMap<Long, Entity>();
+					p.loadRecords(e.getKey(), e.getValue(), record -> records.put(record.getId(), record.<Entity>toEntity(gson)));
+					result.put(e.getKey(), records);
+				}
+				return result;
+			} catch (PersistenceProviderException | RuntimeException e) {
+				log.warn("Peer catch-up failed, continuing from the grid", e);
+				peer = null;
+			}
+
+		return storage.getPersistenceRecords(ids);
+	}
+
+	/**
+	 * Sharded mode: rebalance storages and resume from the least persisted one.
+	 * Storages never persisted by this replica group start where the database left off (see start()).
+	 * @return false if there is nothing to persist
+	 */
+	private boolean claimShards() {
+		Map<String, Long> from = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> e : shards.rebalance().entrySet())
+			from.put(e.getKey(), e.getValue() > 0L ? e.getValue() : startSequence);
+		shardStart = from;
+
+		if (from.isEmpty()) {
+			lastSequence = storage.getPersistenceLogHead();
+			return false;
+		}
+
+		lastSequence = Collections.min(from.values());
+		return true;
+	}
+
+	/**
+	 * Sharded persisters only handle records of their storages not persisted by the previous owner yet.
+	 * @param unitName record unit
+	 * @param sequence log entry sequence number
+	 */
+	private boolean owns(String unitName, long sequence) {
+		Map<String, Long> from = shardStart;
+		if (from == null)
+			return true;
+
+		Long start = from.get(cachedUnitStorage(unitName));
+		return start != null && sequence > start;
+	}
+
+	/**
+	 * Per-storage progress goes to the cluster with every transaction, while the cluster-wide one (the worst storage) - periodically
+	 */
+	private void shardProgress(long sequence, boolean last) {
+		shards.progress(sequence, lastSaveTime);
 
-						count++;
-						if (count >= logEntriesPerTransaction) {
-							if (scheduler == null)
-								return;
-							provider.transactionalSave(conn, insertsOrUpdates.values(), deletes.values(), lastTransactionTime);
-							lastSaveTime = lastTransactionTime;
-							storage.logSaveTime(lastSaveTime);
-
-							insertsOrUpdates.clear();
-							deletes.clear();
-							processedLogEntries += count;
-							count = 0;
+		long now = System.currentTimeMillis();
+		if (last || now - clusterProgressAt >= minWriteBehindSeconds * 1000L) {
+			clusterProgressAt = now;
+			long[] progress = shards.clusterProgress();
+			if (progress != null)
+				storage.logSaveTime(peerName(), progress[1], progress[0]);
+		}
+	}
+
+	/**
+	 * The reader stage: reads the journal by offset until the head or an unexpired gap, and hands batches to fetchers.
+	 */
+	private void read(long sequence, BlockingQueue<CompletableFuture<JournalBatch>> fetched, CountDownLatch done) {
+		try {
+			try {
+				for (long head = storage.getPersistenceLogHead(); sequence < head && !cancelled && scheduler != null; head = storage.getPersistenceLogHead()) {
+					long to = Math.min(head, sequence + journalBatchSize);
+					Map<Long, PersistenceLogEntry> entries = storage.getPersistenceLog(sequence + 1, to);
+
+					long now = System.currentTimeMillis();
+					long settled = gaps.settledSequence(entries, now, journalGapSeconds);
+					boolean gap = false;
+					List<PersistenceLogEntry> batch = new ArrayList<PersistenceLogEntry>();
+					for (long s = sequence + 1; s <= to; s++) {
+						PersistenceLogEntry transaction = entries.get(s);
+						if (transaction == null && s > settled && !gaps.expired(s, to, entries, now, journalGapSeconds)) {
+							gap = true;
+							break;
 						}
+
+						sequence = s;
+						if (transaction != null)
+							batch.add(transaction);
 					}
 
-					cursor.close();
-					cursor = storage.getPersistenceLog(lastTransactionTime);
-					i = cursor.iterator();
+					JournalBatch journalBatch = new JournalBatch(batch, sequence);
+					fetched.put(CompletableFuture.supplyAsync(() -> {
+						long start = System.currentTimeMillis();
+						journalBatch.records = fetchRecords(journalBatch);
+						journalBatch.payloads = payloads(journalBatch.entries);
+						metrics.fetched(fetchedByStorage(journalBatch.records), System.currentTimeMillis() - start);
+						return journalBatch;
+					}, fetchers));
+
+					if (gap)
+						break;
 				}
-			} finally {
-				cursor.close();
+
+				fetched.put(CompletableFuture.completedFuture(new JournalBatch(null, sequence)));
+			} catch (RuntimeException e) {
+				CompletableFuture<JournalBatch> failure = new CompletableFuture<JournalBatch>();
+				failure.completeExceptionally(e);
+				fetched.put(failure);
 			}
-			
-			if (count > 0) {
-				if (scheduler == null)
-					return;
-				provider.transactionalSave(conn, insertsOrUpdates.values(), deletes.values(), lastTransactionTime);
-				lastSaveTime = lastTransactionTime;
-				storage.logSaveTime(lastSaveTime);
-				processedLogEntries += count;
+		} catch (InterruptedException ignored) {
+		} finally {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * The merger stage: merges fetched log entries in the journal order into database transaction chunks and hands them to serializers.
+	 */
+	private void merge(BlockingQueue<CompletableFuture<JournalBatch>> fetched, BlockingQueue<CompletableFuture<Chunk>> chunks, CountDownLatch done) {
+		boolean ended = false;
+		try {
+			try {
+				Chunk chunk = new Chunk();
+				while (true) {
+					JournalBatch batch = fetched.take().join();
+					if (batch.entries == null) {
+						chunk.sequence = batch.sequence;
+						chunk.last = true;
+						chunks.put(serialize(chunk));
+						ended = true;
+						break;
+					}
+
+					for (PersistenceLogEntry transaction : batch.entries) {
+						mergeTransaction(chunk, transaction, batch);
+						if (chunk.insertsOrUpdates.size() + chunk.deletes.size() >= transactionRecords ||
+							(logEntriesPerTransaction > 0 && chunk.count >= logEntriesPerTransaction)) {
+							chunks.put(serialize(chunk));
+							chunk = new Chunk();
+						}
+					}
+					chunk.sequence = batch.sequence;
+				}
+			} catch (RuntimeException e) {
+				CompletableFuture<Chunk> failure = new CompletableFuture<Chunk>();
+				failure.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+				chunks.put(failure);
+				ended = true;
 			}
-		} catch (PersistenceProviderException e) {
-			// Ignoring errors (e.g. database down) for now: the server will retry during its next write-behind
+		} catch (InterruptedException ignored) {
 		} finally {
-			conn.close();
+			if (!ended) { // interrupted: don't leave the writer waiting (it also polls, if the queue is full)
+				CompletableFuture<Chunk> stopped = new CompletableFuture<Chunk>();
+				stopped.completeExceptionally(new RuntimeException("Write-behind stopped"));
+				chunks.offer(stopped);
+			}
+			done.countDown();
 		}
-		
-		log.info("Persisted " + processedLogEntries + " transactions since " + fromTime);
 	}
-	
+
+	/**
+	 * Later log entries override earlier ones. Logged payloads are exactly as of their transaction,
+	 * while records re-read from the grid are current, so those can be skipped if updated later (a later log entry has them too).
+	 */
+	private void mergeTransaction(Chunk chunk, PersistenceLogEntry transaction, JournalBatch batch) {
+		chunk.lastTransactionTime = transaction.getTime();
+		chunk.sequence = transaction.getId();
+		Date transactionTime = new Date(chunk.lastTransactionTime);
+
+		List<PersistenceLogEntry.PersistenceLogRecord> insertsUpdates = new ArrayList<PersistenceLogEntry.PersistenceLogRecord>(transaction.getNewEntities());
+		insertsUpdates.addAll(transaction.getUpdatedEntities());
+		for (PersistenceLogEntry.PersistenceLogRecord r : insertsUpdates) {
+			if (!owns(r.getUnitName(), transaction.getId()))
+				continue;
+
+			Entity entity = r.getPayload() != null ? batch.payloads.get(r) : batch.records.get(r.getUnitName()).get(r.getId());
+			if (entity != null) {
+				if (r.getPayload() == null && mergeUpdates && entity.getModifiedAt().after(transactionTime))
+					continue;
+
+				if (chunk.deletes.containsKey(r.getUnitName(), r.getId()))
+					continue;
+
+				chunk.insertsOrUpdates.put(r.getUnitName(), r.getId(), entity);
+			}
+		}
+
+		for (PersistenceLogEntry.PersistenceLogRecord r : transaction.getDeletedEntities()) {
+			if (!owns(r.getUnitName(), transaction.getId()))
+				continue;
+
+			chunk.insertsOrUpdates.remove(r.getUnitName(), r.getId());
+			chunk.deletes.put(r.getUnitName(), r.getId(), Boolean.TRUE);
+		}
+
+		chunk.count++;
+	}
+
+	/**
+	 * The serializer stage: chunks are serialized in parallel, while the writer still picks them up in order.
+	 */
+	private CompletableFuture<Chunk> serialize(Chunk chunk) {
+		return CompletableFuture.supplyAsync(() -> {
+			List<RawRecord> records = new ArrayList<RawRecord>(chunk.insertsOrUpdates.size());
+			chunk.insertsOrUpdates.forEachValue(entity -> records.add(new RawRecord(entity, gson)));
+			chunk.records = records;
+
+			List<EntityDescriptor> deletes = new ArrayList<EntityDescriptor>();
+			chunk.deletes.forEachUnit((unitName, ids) -> deletes.add(new EntityDescriptor(null, unitName, ids.keys())));
+			chunk.deleteDescriptors = deletes;
+			return chunk;
+		}, serializers);
+	}
+
+	private String cachedUnitStorage(String unitName) {
+		return unitStorages.computeIfAbsent(unitName, provider::unitStorage);
+	}
+
+	private Map<String, Integer> fetchedByStorage(Map<String, Map<Long, Entity>> records) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (Map.Entry<String, Map<Long, Entity>> e : records.entrySet())
+			result.merge(cachedUnitStorage(e.getKey()), e.getValue().size(), Integer::sum);
+		return result;
+	}
+
+	private Map<String, Integer> writtenByStorage(Chunk chunk) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (RawRecord r : chunk.records)
+			result.merge(cachedUnitStorage(r.getUnitName()), 1, Integer::sum);
+		return result;
+	}
+
+	private Map<String, Integer> deletedByStorage(Chunk chunk) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (EntityDescriptor d : chunk.deleteDescriptors)
+			result.merge(cachedUnitStorage(d.getUnit()), d.getIds().length, Integer::sum);
+		return result;
+	}
+
+	private long backlog() {
+		Long sequence = lastSequence;
+		return sequence == null ? 0L : Math.max(0L, storage.getPersistenceLogHead() - sequence);
+	}
+
+	private long oldestUnpersistedAge() {
+		Long sequence = lastSequence;
+		return sequence == null ? 0L : storage.oldestUnpersistedAge(sequence, System.currentTimeMillis());
+	}
+
+	private String nodeName() {
+		if (nodeName != null)
+			return nodeName;
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
+		}
+	}
+
+	/**
+	 * Inserted and updated records referenced by log entries - deduplicated and grouped by unit for bulk fetching.
+	 */
+	private Map<String, Set<Long>> referencedRecords(Collection<PersistenceLogEntry> entries) {
+		Map<String, Set<Long>> result = new HashMap<String, Set<Long>>();
+		for (PersistenceLogEntry transaction : entries) {
+			for (PersistenceLogEntry.PersistenceLogRecord r : transaction.getNewEntities())
+				if (r.getPayload() == null && owns(r.getUnitName(), transaction.getId()))
+					result.computeIfAbsent(r.getUnitName(), u -> new HashSet<Long>()).add(r.getId());
+			for (PersistenceLogEntry.PersistenceLogRecord r : transaction.getUpdatedEntities())
+				if (r.getPayload() == null && owns(r.getUnitName(), transaction.getId()))
+					result.computeIfAbsent(r.getUnitName(), u -> new HashSet<Long>()).add(r.getId());
+		}
+		return result;
+	}
+
+	/**
+	 * Entities logged with payloads (see InMemoryDatabase.persistencePayloads) - deserialized w/o touching the grid
+	 */
+	private Map<PersistenceLogEntry.PersistenceLogRecord, Entity> payloads(Collection<PersistenceLogEntry> entries) {
+		Map<PersistenceLogEntry.PersistenceLogRecord, Entity> result = new IdentityHashMap<PersistenceLogEntry.PersistenceLogRecord, Entity>();
+		for (PersistenceLogEntry transaction : entries) {
+			for (PersistenceLogEntry.PersistenceLogRecord r : transaction.getNewEntities())
+				if (r.getPayload() != null && owns(r.getUnitName(), transaction.getId()))
+					result.put(r, payload(r));
+			for (PersistenceLogEntry.PersistenceLogRecord r : transaction.getUpdatedEntities())
+				if (r.getPayload() != null && owns(r.getUnitName(), transaction.getId()))
+					result.put(r, payload(r));
+		}
+		return result;
+	}
+
+	private static Entity payload(PersistenceLogEntry.PersistenceLogRecord r) {
+		Class<?> entityClass = UnitDescriptor.get(r.getUnitName()).getEntityClass();
+		if (entityClass == null)
+			throw new RuntimeException("Unknown entity unit " + r.getUnitName());
+		return SerializationDefinition.get(entityClass).fromBytes(r.getPayload());
+	}
+
 	/**
 	 * Restarting crashed persistence servers is expected within cleanupHours (typically 24).
 	 * Otherwise the system is shut down via DataStorage.emergencyShutdown().
@@ -352,6 +910,26 @@ public class DiskPersistence {
 		this.logEntriesPerTransaction = logEntriesPerTransaction;
 	}
 
+	@SuppressWarnings("unused")
+	public void setRecordsPerTransaction(int recordsPerTransaction) {
+		this.recordsPerTransaction = recordsPerTransaction;
+	}
+
+	@SuppressWarnings("unused")
+	public void setMaxRecordsPerTransaction(int maxRecordsPerTransaction) {
+		this.maxRecordsPerTransaction = maxRecordsPerTransaction;
+	}
+
+	@SuppressWarnings("unused")
+	public void setMinWriteBehindSeconds(int minWriteBehindSeconds) {
+		this.minWriteBehindSeconds = minWriteBehindSeconds;
+	}
+
+	@SuppressWarnings("unused")
+	public void setMaxWriteBehindSeconds(int maxWriteBehindSeconds) {
+		this.maxWriteBehindSeconds = maxWriteBehindSeconds;
+	}
+
 	public void setWriteBehindSeconds(int writeBehindInterval) {
 		this.writeBehindSeconds = writeBehindInterval;
 	}
@@ -364,6 +942,90 @@ public class DiskPersistence {
 		return cleanupHours;
 	}
 
+	@SuppressWarnings("unused")
+	public void setJournalBatchSize(int journalBatchSize) {
+		this.journalBatchSize = journalBatchSize;
+	}
+
+	@SuppressWarnings("unused")
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	@SuppressWarnings("unused")
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	@SuppressWarnings("unused")
+	public void setNodeName(String nodeName) {
+		this.nodeName = nodeName;
+	}
+
+	@SuppressWarnings("unused")
+	public void setSharded(boolean sharded) {
+		this.sharded = sharded;
+	}
+
+	@SuppressWarnings("unused")
+	public void setReplica(int replica) {
+		this.replica = replica;
+	}
+
+	@SuppressWarnings("unused")
+	public void setReplicationFactor(int replicationFactor) {
+		this.replicationFactor = replicationFactor;
+	}
+
+	@SuppressWarnings("unused")
+	public void setShardLeaseSeconds(int shardLeaseSeconds) {
+		this.shardLeaseSeconds = shardLeaseSeconds;
+	}
+
+	/**
+	 * Other persisters' databases for peer-assisted catch-ups (see start())
+	 * @param peers providers reading peer databases by peer names (see peerName)
+	 */
+	@SuppressWarnings("unused")
+	public void setPeers(Map<String, PersistenceProvider> peers) {
+		this.peers = peers;
+	}
+
+	@SuppressWarnings("unused")
+	public void setPeerName(String peerName) {
+		this.peerName = peerName;
+	}
+
+	@SuppressWarnings("unused")
+	public void setPeerTimeoutSeconds(int peerTimeoutSeconds) {
+		this.peerTimeoutSeconds = peerTimeoutSeconds;
+	}
+
+	@SuppressWarnings("unused")
+	public void setPeerCatchUpEntries(int peerCatchUpEntries) {
+		this.peerCatchUpEntries = peerCatchUpEntries;
+	}
+
+	@SuppressWarnings("unused")
+	public void setFetchThreads(int fetchThreads) {
+		this.fetchThreads = fetchThreads;
+	}
+
+	@SuppressWarnings("unused")
+	public void setSerializeThreads(int serializeThreads) {
+		this.serializeThreads = serializeThreads;
+	}
+
+	@SuppressWarnings("unused")
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	@SuppressWarnings("unused")
+	public void setJournalGapSeconds(int journalGapSeconds) {
+		this.journalGapSeconds = journalGapSeconds;
+	}
+
 	@SuppressWarnings("unused")
 	public void setCompactHours(int compactHours) {
 		this.compactHours = compactHours;
@@ -0,0 +1,84 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.plugin.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persistence log gaps: missing (in flight or failed) journal entries. Used internally by {@link DiskPersistence}.<br>
+ * <br>
+ * Sequence numbers are allocated before log entries are committed, so the journal reader can't tell a slow transaction from a failed one.
+ * A gap is skipped when a following entry was logged more than journalGapSeconds ago (the gap is settled), or when it stays missing
+ * for journalGapSeconds since it was first noticed (expired). Otherwise the reader waits for it.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+class JournalGaps {
+	private static Log log = LogFactory.getLog(JournalGaps.class);
+
+	private final Map<Long, Long> gaps = new HashMap<Long, Long>(); // sequence -> first noticed
+
+	/**
+	 * A missing entry followed by one logged long enough ago can't be in flight anymore: its transaction failed or it was purged.
+	 * @param entries log entries read
+	 * @param now current time
+	 * @param journalGapSeconds see DiskPersistence.journalGapSeconds
+	 * @return the last settled sequence: gaps before it can be skipped, or 0
+	 */
+	long settledSequence(Map<Long, PersistenceLogEntry> entries, long now, int journalGapSeconds) {
+		long threshold = now - journalGapSeconds * 1000L;
+		long result = 0L;
+		for (PersistenceLogEntry e : entries.values())
+			if (e.getTime() < threshold && e.getId() > result)
+				result = e.getId();
+		return result;
+	}
+
+	/**
+	 * A missing entry w/o settled followers: wait until it's committed or journalGapSeconds pass since it was first noticed.
+	 * @param sequence missing entry
+	 * @param to the last sequence read
+	 * @param entries log entries read
+	 * @param now current time
+	 * @param journalGapSeconds see DiskPersistence.journalGapSeconds
+	 * @return if the entry can be skipped
+	 */
+	boolean expired(long sequence, long to, Map<Long, PersistenceLogEntry> entries, long now, int journalGapSeconds) {
+		Long firstSeen = gaps.get(sequence);
+		if (firstSeen != null && now - firstSeen >= journalGapSeconds * 1000L) {
+			log.warn("Skipping persistence log entry " + sequence + " not committed in " + journalGapSeconds + " seconds");
+			return true;
+		}
+
+		for (long s = sequence; s <= to; s++) // all of them are going to expire together
+			if (!entries.containsKey(s))
+				gaps.putIfAbsent(s, now);
+		return false;
+	}
+
+	/**
+	 * Forgets gaps already passed (skipped or committed) e.g. when the write-behind resumes
+	 * @param sequence the last processed journal entry
+	 */
+	void passed(long sequence) {
+		gaps.keySet().removeIf(s -> s <= sequence);
+	}
+}
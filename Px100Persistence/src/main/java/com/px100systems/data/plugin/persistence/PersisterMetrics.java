@@ -0,0 +1,366 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.plugin.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.px100systems.util.MetricsRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Write-behind lag and throughput metrics of one persister (node) and its storages. Used internally by {@link DiskPersistence}.<br>
+ * <br>
+ * Exposed via JMX as com.px100systems.data:type=Persister,node=... and com.px100systems.data:type=PersisterStorage,node=...,storage=...
+ * and optionally reported to a pluggable {@link MetricsRegistry} (tagged with "node" and "storage"):
+ * <ul>
+ *   <li>px100.persister.backlog, px100.persister.oldestUnpersistedAge, px100.persister.lastSaveTime - gauges
+ *   <li>px100.persister.transactions, px100.persister.records.fetched/written/deleted, px100.persister.write.failures - counters
+ *   <li>px100.persister.fetch.latency, px100.persister.write.latency - timers
+ * </ul>
+ * Alert on backlog and oldestUnpersistedAge long before the cluster's maxPersistenceDelayHours is reached.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class PersisterMetrics implements PersisterMetricsMXBean {
+	private static Log log = LogFactory.getLog(PersisterMetrics.class);
+
+	private static final String DOMAIN = "com.px100systems.data";
+	private static final long[] LATENCY_BUCKETS = {10L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L, Long.MAX_VALUE};
+
+	/**
+	 * Latency histogram with fixed buckets (see getLatencyBucketsMillis)
+	 */
+	private static class Histogram {
+		private AtomicLongArray counts = new AtomicLongArray(LATENCY_BUCKETS.length);
+
+		public void record(long millis) {
+			for (int i = 0; i < LATENCY_BUCKETS.length; i++)
+				if (millis <= LATENCY_BUCKETS[i]) {
+					counts.incrementAndGet(i);
+					return;
+				}
+		}
+
+		public long[] counts() {
+			long[] result = new long[counts.length()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = counts.get(i);
+			return result;
+		}
+	}
+
+	/**
+	 * Per-storage metrics
+	 */
+	public class StorageMetrics implements PersisterStorageMetricsMXBean {
+		private String storage;
+		private Map<String, String> tags;
+		private LongAdder fetched = new LongAdder();
+		private LongAdder written = new LongAdder();
+		private LongAdder deleted = new LongAdder();
+
+		private StorageMetrics(String storage) {
+			this.storage = storage;
+			tags = new HashMap<String, String>(nodeTags);
+			tags.put("storage", storage);
+		}
+
+		@Override
+		public String getNode() {
+			return node;
+		}
+
+		@Override
+		public String getStorage() {
+			return storage;
+		}
+
+		@Override
+		public long getRecordsFetched() {
+			return fetched.sum();
+		}
+
+		@Override
+		public long getRecordsWritten() {
+			return written.sum();
+		}
+
+		@Override
+		public long getRecordsDeleted() {
+			return deleted.sum();
+		}
+	}
+
+	private String node;
+	private Map<String, String> nodeTags = new HashMap<String, String>();
+	private MetricsRegistry registry;
+	private boolean jmx;
+	private List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	private Supplier<Long> backlog;
+	private Supplier<Long> oldestUnpersistedAge;
+	private volatile long lastSaveTime = 0L;
+
+	private LongAdder transactions = new LongAdder();
+	private LongAdder fetched = new LongAdder();
+	private LongAdder written = new LongAdder();
+	private LongAdder deleted = new LongAdder();
+	private LongAdder databaseTransactions = new LongAdder();
+	private LongAdder databaseFailures = new LongAdder();
+	private Histogram fetchLatency = new Histogram();
+	private Histogram writeLatency = new Histogram();
+	private ConcurrentMap<String, StorageMetrics> storages = new ConcurrentHashMap<String, StorageMetrics>();
+
+	private volatile long runStarted = 0L;
+	private AtomicLong runFetched = new AtomicLong();
+	private AtomicLong runWritten = new AtomicLong();
+	private volatile double fetchedPerSecond = 0.0;
+	private volatile double writtenPerSecond = 0.0;
+
+	/**
+	 * @param node node (persister) name
+	 * @param registry optional metrics registry
+	 * @param jmx register JMX beans
+	 * @param backlog backlog supplier
+	 * @param oldestUnpersistedAge oldest unpersisted log entry age supplier
+	 */
+	public PersisterMetrics(String node, MetricsRegistry registry, boolean jmx, Supplier<Long> backlog, Supplier<Long> oldestUnpersistedAge) {
+		this.node = node;
+		this.registry = registry;
+		this.jmx = jmx;
+		this.backlog = backlog;
+		this.oldestUnpersistedAge = oldestUnpersistedAge;
+		nodeTags.put("node", node);
+
+		if (registry != null) {
+			registry.gauge("px100.persister.backlog", nodeTags, this::getBacklog);
+			registry.gauge("px100.persister.oldestUnpersistedAge", nodeTags, this::getOldestUnpersistedAgeMillis);
+			registry.gauge("px100.persister.lastSaveTime", nodeTags, this::getLastSaveTime);
+		}
+		register("type=Persister,node=" + ObjectName.quote(node), this);
+	}
+
+	private void register(String name, Object bean) {
+		if (!jmx)
+			return;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":" + name);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(bean, objectName);
+			registered.add(objectName);
+		} catch (Exception e) {
+			log.warn("Could not register JMX bean " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Unregister JMX beans
+	 */
+	public void close() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered)
+			try {
+				server.unregisterMBean(name);
+			} catch (Exception ignored) {
+			}
+		registered.clear();
+	}
+
+	private StorageMetrics storage(String storage) {
+		StorageMetrics result = storages.get(storage);
+		if (result == null) {
+			StorageMetrics created = new StorageMetrics(storage);
+			result = storages.putIfAbsent(storage, created);
+			if (result == null) {
+				result = created;
+				register("type=PersisterStorage,node=" + ObjectName.quote(node) + ",storage=" + ObjectName.quote(storage), created);
+			}
+		}
+		return result;
+	}
+
+	public void runStarted() {
+		runStarted = System.currentTimeMillis();
+		runFetched.set(0L);
+		runWritten.set(0L);
+	}
+
+	public void runFinished(int processedTransactions) {
+		double seconds = Math.max(1L, System.currentTimeMillis() - runStarted) / 1000.0;
+		fetchedPerSecond = runFetched.get() / seconds;
+		writtenPerSecond = runWritten.get() / seconds;
+
+		transactions.add(processedTransactions);
+		if (registry != null)
+			registry.count("px100.persister.transactions", nodeTags, processedTransactions);
+	}
+
+	/**
+	 * Records of one journal batch fetched from the cluster
+	 * @param byStorage record counts by storage
+	 * @param millis fetch latency
+	 */
+	public void fetched(Map<String, Integer> byStorage, long millis) {
+		fetchLatency.record(millis);
+		if (registry != null)
+			registry.record("px100.persister.fetch.latency", nodeTags, millis);
+
+		for (Map.Entry<String, Integer> e : byStorage.entrySet()) {
+			StorageMetrics storage = storage(e.getKey());
+			storage.fetched.add(e.getValue());
+			if (registry != null)
+				registry.count("px100.persister.records.fetched", storage.tags, e.getValue());
+			fetched.add(e.getValue());
+			runFetched.addAndGet(e.getValue());
+		}
+	}
+
+	/**
+	 * One database transaction committed
+	 * @param writtenByStorage inserted or updated record counts by storage
+	 * @param deletedByStorage deleted record counts by storage
+	 * @param millis database transaction latency
+	 */
+	public void written(Map<String, Integer> writtenByStorage, Map<String, Integer> deletedByStorage, long millis) {
+		databaseTransactions.increment();
+		writeLatency.record(millis);
+		if (registry != null)
+			registry.record("px100.persister.write.latency", nodeTags, millis);
+
+		for (Map.Entry<String, Integer> e : writtenByStorage.entrySet()) {
+			StorageMetrics storage = storage(e.getKey());
+			storage.written.add(e.getValue());
+			if (registry != null)
+				registry.count("px100.persister.records.written", storage.tags, e.getValue());
+			written.add(e.getValue());
+			runWritten.addAndGet(e.getValue());
+		}
+
+		for (Map.Entry<String, Integer> e : deletedByStorage.entrySet()) {
+			StorageMetrics storage = storage(e.getKey());
+			storage.deleted.add(e.getValue());
+			if (registry != null)
+				registry.count("px100.persister.records.deleted", storage.tags, e.getValue());
+			deleted.add(e.getValue());
+			runWritten.addAndGet(e.getValue());
+		}
+	}
+
+	/**
+	 * One database transaction failed (the persister retries it during its next run)
+	 */
+	public void writeFailed() {
+		databaseFailures.increment();
+		if (registry != null)
+			registry.count("px100.persister.write.failures", nodeTags, 1L);
+	}
+
+	public void saved(long lastSaveTime) {
+		this.lastSaveTime = lastSaveTime;
+	}
+
+	@Override
+	public String getNode() {
+		return node;
+	}
+
+	@Override
+	public long getBacklog() {
+		return backlog.get();
+	}
+
+	@Override
+	public long getOldestUnpersistedAgeMillis() {
+		return oldestUnpersistedAge.get();
+	}
+
+	@Override
+	public long getLastSaveTime() {
+		return lastSaveTime;
+	}
+
+	@Override
+	public long getTransactionsPersisted() {
+		return transactions.sum();
+	}
+
+	@Override
+	public long getRecordsFetched() {
+		return fetched.sum();
+	}
+
+	@Override
+	public long getRecordsWritten() {
+		return written.sum();
+	}
+
+	@Override
+	public long getRecordsDeleted() {
+		return deleted.sum();
+	}
+
+	@Override
+	public double getRecordsFetchedPerSecond() {
+		return fetchedPerSecond;
+	}
+
+	@Override
+	public double getRecordsWrittenPerSecond() {
+		return writtenPerSecond;
+	}
+
+	@Override
+	public long getDatabaseTransactions() {
+		return databaseTransactions.sum();
+	}
+
+	@Override
+	public long getDatabaseTransactionFailures() {
+		return databaseFailures.sum();
+	}
+
+	@Override
+	public long[] getLatencyBucketsMillis() {
+		return LATENCY_BUCKETS.clone();
+	}
+
+	@Override
+	public long[] getFetchLatencyHistogram() {
+		return fetchLatency.counts();
+	}
+
+	@Override
+	public long[] getWriteLatencyHistogram() {
+		return writeLatency.counts();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.plugin.persistence;
+
+/**
+ * JMX view of one persister (node): see {@link PersisterMetrics}.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public interface PersisterMetricsMXBean {
+	String getNode();
+
+	/**
+	 * @return persistence log entries not processed by this persister yet
+	 */
+	long getBacklog();
+
+	/**
+	 * @return age of the oldest persistence log entry not processed by this persister yet (0 if none)
+	 */
+	long getOldestUnpersistedAgeMillis();
+
+	/**
+	 * @return the time of the last persisted log entry (reported to the cluster via logSaveTime)
+	 */
+	long getLastSaveTime();
+
+	long getTransactionsPersisted();
+
+	long getRecordsFetched();
+
+	long getRecordsWritten();
+
+	long getRecordsDeleted();
+
+	/**
+	 * @return records fetched per second during the last write-behind run
+	 */
+	double getRecordsFetchedPerSecond();
+
+	/**
+	 * @return records written (and deleted) per second during the last write-behind run
+	 */
+	double getRecordsWrittenPerSecond();
+
+	long getDatabaseTransactions();
+
+	long getDatabaseTransactionFailures();
+
+	/**
+	 * @return upper bounds (in milliseconds) of latency histogram buckets - the last one is unbounded
+	 */
+	long[] getLatencyBucketsMillis();
+
+	/**
+	 * @return record fetch (per journal batch) latency histogram
+	 */
+	long[] getFetchLatencyHistogram();
+
+	/**
+	 * @return database transaction latency histogram
+	 */
+	long[] getWriteLatencyHistogram();
+}
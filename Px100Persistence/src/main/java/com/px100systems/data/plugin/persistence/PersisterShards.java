@@ -0,0 +1,234 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.plugin.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.px100systems.data.core.InMemoryDatabase;
+import com.px100systems.data.core.Lock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Storage ownership of sharded persisters (see DiskPersistence.sharded). Used internally by {@link DiskPersistence}.<br>
+ * <br>
+ * Shards are persistence storages (database "tables"). Persisters of one replica group share their database(s) and split all storages
+ * among live members: every storage is owned by exactly one member of every group, so adding members adds throughput,
+ * while every group keeps a full copy (see DiskPersistence.replicationFactor).<br>
+ * Ownership is a lease in cluster atomics. It is claimed and released between write-behinds and renewed before every database transaction -
+ * all under the same cluster lock, so a storage never has two writers:
+ * <ul>
+ *   <li>the fair share is the number of storages divided by the number of live members (unexpired leases plus a joining one)
+ *   <li>members over the share release extra storages, members under it claim free or expired ones
+ *   <li>a member w/o storages announces itself as joining, so others release theirs on their next rebalance
+ *   <li>stopped members release their storages, while crashed ones lose them when leases expire
+ * </ul>
+ * The progress (last persisted journal entry) is kept per storage and replica, so the next owner resumes exactly where the previous one left off.
+ * The cluster-wide progress is the worst storage's best replica. Storages never persisted by any replica are not counted.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+class PersisterShards {
+	private static Log log = LogFactory.getLog(PersisterShards.class);
+
+	private static final long LOCK_TIMEOUT_MILLIS = 10000L;
+
+	private final InMemoryDatabase cluster;
+	private final List<String> storages;
+	private final int replica;
+	private final int replicationFactor;
+	private final long leaseMillis;
+	private final long id;
+
+	private Map<String, Long> owned = new HashMap<String, Long>(); // storage -> the last persisted journal entry
+
+	PersisterShards(InMemoryDatabase cluster, List<String> storages, int replica, int replicationFactor, int leaseSeconds) {
+		this.cluster = cluster;
+		this.storages = storages;
+		this.replica = replica;
+		this.replicationFactor = replicationFactor;
+		this.leaseMillis = leaseSeconds * 1000L;
+		id = cluster.incrementClusterLong("persisterShardOwners");
+	}
+
+	private static String key(int replica, String storage, String field) {
+		return "persisterShard_" + replica + "_" + storage + "_" + field;
+	}
+
+	private String key(String storage, String field) {
+		return key(replica, storage, field);
+	}
+
+	/**
+	 * Renew, release, and claim storages up to the fair share. Only called between write-behinds.
+	 * @return owned storages and the last journal entry persisted for each of them by this replica group (0 if never)
+	 */
+	synchronized Map<String, Long> rebalance() {
+		Lock lock = cluster.clusterLock("persisterShards_" + replica, LOCK_TIMEOUT_MILLIS);
+		if (lock == null) {
+			log.warn("Could not rebalance persister storages: keeping " + owned.keySet());
+			return new HashMap<String, Long>(owned);
+		}
+
+		try {
+			long now = System.currentTimeMillis();
+			List<String> mine = new ArrayList<String>();
+			List<String> available = new ArrayList<String>();
+			Set<Long> live = new HashSet<Long>();
+			live.add(id);
+			for (String storage : storages) {
+				long owner = cluster.getClusterLong(key(storage, "owner"));
+				if (owner == id) // even if expired, nobody claimed it
+					mine.add(storage);
+				else if (owner == 0L || cluster.getClusterLong(key(storage, "lease")) < now)
+					available.add(storage);
+				else
+					live.add(owner);
+			}
+
+			long joining = cluster.getClusterLong("persisterShardJoining_" + replica);
+			int members = live.size();
+			if (joining != 0L && !live.contains(joining) && now - cluster.getClusterLong("persisterShardJoiningAt_" + replica) < leaseMillis)
+				members++;
+			int share = (storages.size() + members - 1) / members;
+
+			while (mine.size() > share) {
+				String storage = mine.remove(mine.size() - 1);
+				cluster.setClusterLong(key(storage, "owner"), 0L);
+				cluster.setClusterLong(key(storage, "lease"), 0L);
+			}
+
+			while (mine.size() < share && !available.isEmpty()) {
+				String storage = available.remove(0);
+				cluster.setClusterLong(key(storage, "owner"), id);
+				mine.add(storage);
+			}
+
+			Map<String, Long> result = new HashMap<String, Long>();
+			for (String storage : mine) {
+				cluster.setClusterLong(key(storage, "lease"), now + leaseMillis);
+				Long sequence = owned.get(storage);
+				result.put(storage, sequence != null ? sequence : cluster.getClusterLong(key(storage, "sequence")));
+			}
+
+			if (mine.isEmpty()) {
+				cluster.setClusterLong("persisterShardJoining_" + replica, id);
+				cluster.setClusterLong("persisterShardJoiningAt_" + replica, now);
+			} else if (joining == id)
+				cluster.setClusterLong("persisterShardJoining_" + replica, 0L);
+
+			if (!result.keySet().equals(owned.keySet()))
+				log.info("Persister " + id + " (replica " + replica + ") owns storages " + result.keySet() + " of " + members + " members' " + storages.size());
+			owned = result;
+			return new HashMap<String, Long>(owned);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Renew leases before writing to the database. Under the rebalancing lock, so an expired lease can't be claimed in between.
+	 * @throws RuntimeException if some storage was claimed by another member after its lease expired or the lock timed out
+	 */
+	synchronized void renew() {
+		Lock lock = cluster.clusterLock("persisterShards_" + replica, LOCK_TIMEOUT_MILLIS);
+		if (lock == null)
+			throw new RuntimeException("Persister " + id + " could not renew its storage leases: the lock timed out");
+
+		try {
+			long lease = System.currentTimeMillis() + leaseMillis;
+			for (String storage : new ArrayList<String>(owned.keySet())) {
+				if (cluster.getClusterLong(key(storage, "owner")) != id) {
+					owned.remove(storage);
+					throw new RuntimeException("Persister " + id + " lost storage " + storage + ": its lease expired");
+				}
+				cluster.setClusterLong(key(storage, "lease"), lease);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record owned storages' progress: journal entries up to the sequence are persisted (or skipped).
+	 * Storages already persisted further by their previous owner are left alone.
+	 * @param sequence the last persisted journal entry
+	 * @param time its time
+	 */
+	synchronized void progress(long sequence, Long time) {
+		for (Map.Entry<String, Long> e : owned.entrySet())
+			if (sequence > e.getValue()) {
+				cluster.setClusterLong(key(e.getKey(), "sequence"), sequence);
+				cluster.setClusterLong(key(e.getKey(), "time"), time == null ? 0L : time);
+				e.setValue(sequence);
+			}
+	}
+
+	/**
+	 * Cluster-wide progress: the worst storage's best replica
+	 * @return the sequence and time or null if nothing was persisted yet
+	 */
+	long[] clusterProgress() {
+		long[] result = null;
+		for (String storage : storages) {
+			long sequence = 0L;
+			long time = 0L;
+			for (int r = 0; r < replicationFactor; r++) {
+				long s = cluster.getClusterLong(key(r, storage, "sequence"));
+				if (s > sequence) {
+					sequence = s;
+					time = cluster.getClusterLong(key(r, storage, "time"));
+				}
+			}
+
+			if (sequence > 0L && (result == null || sequence < result[0]))
+				result = new long[] {sequence, time};
+		}
+		return result;
+	}
+
+	/**
+	 * Release all storages, so other members can claim them right away. If the lock times out, leases are left to expire instead.
+	 */
+	synchronized void release() {
+		if (owned.isEmpty())
+			return;
+
+		Lock lock = cluster.clusterLock("persisterShards_" + replica, LOCK_TIMEOUT_MILLIS);
+		if (lock == null) {
+			log.warn("Could not release persister storages " + owned.keySet() + ": leaving them to expire");
+			owned.clear();
+			return;
+		}
+
+		try {
+			for (String storage : owned.keySet())
+				if (cluster.getClusterLong(key(storage, "owner")) == id) {
+					cluster.setClusterLong(key(storage, "owner"), 0L);
+					cluster.setClusterLong(key(storage, "lease"), 0L);
+				}
+			owned.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
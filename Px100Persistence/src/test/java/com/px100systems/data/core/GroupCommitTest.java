@@ -0,0 +1,134 @@
+package com.px100systems.data.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Group commit: merging, one by one fallback, and outcome propagation
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class GroupCommitTest extends TestCase {
+	private TestDatabase db;
+	private GroupCommit groupCommit;
+
+	public GroupCommitTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(GroupCommitTest.class);
+	}
+
+	@Override
+	protected void setUp() {
+		db = new TestDatabase();
+		groupCommit = new GroupCommit(db, 1000L, 10);
+	}
+
+	/**
+	 * Commits transactions (an insert and a delete by ID each) concurrently
+	 * @return every caller's failure (null if committed)
+	 */
+	private Throwable[] commit(long... ids) throws InterruptedException {
+		Throwable[] result = new Throwable[ids.length];
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < ids.length; i++) {
+			int n = i;
+			TestDatabase.TestEntity inserted = new TestDatabase.TestEntity(ids[i]);
+			inserted.setOperationOrderNo(0);
+			List<StoredBean> inserts = new ArrayList<>();
+			inserts.add(inserted);
+			List<Delete> deletes = new ArrayList<>();
+			deletes.add(new Delete(1, new TestDatabase.TestEntity(ids[i] + 1000L)));
+
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					groupCommit.commit(inserts, new ArrayList<StoredBean>(), deletes);
+				} catch (Throwable e) {
+					result[n] = e;
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		return result;
+	}
+
+	private static int orderNo(String operation) {
+		return Integer.parseInt(operation.substring(operation.lastIndexOf(' ') + 1));
+	}
+
+	public void testMerging() throws InterruptedException {
+		Throwable[] result = commit(1L, 2L, 3L);
+		for (Throwable e : result)
+			assertNull(e);
+
+		assertEquals(1, db.saves.size());
+		List<String> merged = db.saves.get(0);
+		assertEquals(6, merged.size());
+
+		Set<Integer> orderNos = new HashSet<>();
+		for (String operation : merged)
+			assertTrue("Duplicate operation order number: " + merged, orderNos.add(orderNo(operation)));
+		for (long id = 1; id <= 3; id++) {
+			int insert = -1, delete = -1;
+			for (String operation : merged)
+				if (operation.startsWith("insert " + id + " "))
+					insert = orderNo(operation);
+				else if (operation.startsWith("delete " + (id + 1000L) + " "))
+					delete = orderNo(operation);
+			assertTrue(insert >= 0 && insert < delete);
+		}
+
+		assertEquals(3, db.saved.size());
+	}
+
+	public void testFallback() throws InterruptedException {
+		db.failingId = 2L;
+		Throwable[] result = commit(1L, 2L, 3L);
+
+		assertNull(result[0]);
+		assertTrue(result[1] instanceof DataStorageException);
+		assertNull(result[2]);
+
+		assertEquals(4, db.saves.size()); // the merged one and three individual ones
+		for (List<String> individual : db.saves.subList(1, 4)) {
+			assertEquals(2, individual.size());
+			assertEquals(0, orderNo(individual.get(0)));
+			assertEquals(1, orderNo(individual.get(1)));
+		}
+
+		assertEquals(2, db.saved.size());
+		assertFalse(db.saved.contains(2L));
+	}
+
+	public void testAfterSaveFailure() throws InterruptedException {
+		db.failAfterSave = true;
+		Throwable[] result = commit(1L, 2L);
+
+		assertEquals(1, db.saves.size());
+		for (Throwable e : result)
+			assertTrue(e instanceof DataStorageException);
+	}
+
+	public void testGroupable() {
+		List<InPlaceUpdate<?>> noInPlaceUpdates = Collections.emptyList();
+		assertTrue(GroupCommit.groupable(Collections.singletonList(new Delete(0, new TestDatabase.TestEntity(1L))), noInPlaceUpdates));
+		assertFalse(GroupCommit.groupable(Collections.singletonList(new Delete(0, TestDatabase.TestEntity.class, 0, Criteria.eq("id", 1L))), noInPlaceUpdates));
+	}
+}
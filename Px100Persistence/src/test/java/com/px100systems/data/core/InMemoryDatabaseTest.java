@@ -0,0 +1,159 @@
+package com.px100systems.data.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import com.px100systems.data.plugin.persistence.PersistenceLogEntry;
+import com.px100systems.util.serialization.SerializationDefinition;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Write-behind backpressure and persister progress
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class InMemoryDatabaseTest extends TestCase {
+	private static final long HOURS_AGO = System.currentTimeMillis() - 2L * 60L * 60L * 1000L;
+
+	public static class LoggedEntity extends Entity {
+		public LoggedEntity() {
+		}
+
+		public LoggedEntity(long id) {
+			setId(id);
+			setTenantId(0);
+		}
+	}
+
+	private TestStorageProvider provider;
+
+	public InMemoryDatabaseTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(InMemoryDatabaseTest.class);
+	}
+
+	@Override
+	protected void setUp() {
+		provider = new TestStorageProvider();
+	}
+
+	private InMemoryDatabase database(long throttleBacklog) {
+		InMemoryDatabase result = new InMemoryDatabase();
+		TestStorageProvider.wire(result, provider);
+		result.setThrottleBacklog(throttleBacklog);
+		result.setThrottleLagMinutes(30);
+		result.setOverloadedTenantCommitsPerSecond(0); // any throttling rejects the commit
+		return result;
+	}
+
+	private void log(long sequence, long time) {
+		PersistenceLogEntry entry = new PersistenceLogEntry();
+		entry.setId(sequence);
+		entry.setTime(time);
+		provider.save(PersistenceLogEntry.UNIT_NAME, sequence, entry);
+		provider.createIdGenerator(PersistenceLogEntry.UNIT_NAME, Math.max(sequence, provider.getLastId(PersistenceLogEntry.UNIT_NAME)));
+	}
+
+	private static boolean throttled(InMemoryDatabase db) {
+		try {
+			db.throttle(1);
+			return false;
+		} catch (DataStorageBusyException e) {
+			return true;
+		}
+	}
+
+	public void testIdleThenCommit() {
+		for (long sequence = 1; sequence <= 5; sequence++)
+			log(sequence, HOURS_AGO);
+		InMemoryDatabase db = database(1000L);
+		db.logSaveTime("persister", HOURS_AGO, 5L);
+
+		log(6L, System.currentTimeMillis());
+		assertFalse(throttled(db));
+	}
+
+	public void testOldUnpersistedEntry() {
+		for (long sequence = 1; sequence <= 6; sequence++)
+			log(sequence, HOURS_AGO);
+		InMemoryDatabase db = database(1000L);
+		db.logSaveTime("persister", HOURS_AGO, 5L);
+
+		assertTrue(throttled(db));
+	}
+
+	public void testUnpersistedBehindHole() {
+		for (long sequence = 1; sequence <= 6; sequence++)
+			if (sequence != 4)
+				log(sequence, HOURS_AGO);
+		InMemoryDatabase db = database(1000L);
+		db.logSaveTime("persister", HOURS_AGO, 3L); // stuck at the missing entry 4
+
+		long now = System.currentTimeMillis();
+		assertTrue(db.oldestUnpersistedAge(3L, now) >= now - HOURS_AGO);
+		assertEquals(0L, db.oldestUnpersistedAge(6L, now));
+		assertTrue(throttled(db));
+	}
+
+	public void testBestReplica() {
+		for (long sequence = 1; sequence <= 10; sequence++)
+			log(sequence, HOURS_AGO);
+		InMemoryDatabase db = database(2L);
+		long now = System.currentTimeMillis();
+		db.logSaveTime("fast", now, 10L);
+		db.logSaveTime("slow", HOURS_AGO, 4L);
+
+		assertEquals(10L, db.getClusterLong("lastPersistSequence"));
+		assertEquals(now, db.getClusterLong("lastPersist"));
+		assertEquals(4L, db.getPersisterProgress("slow")[0]);
+		assertEquals(10L, db.getPersisterProgress("fast")[0]);
+		assertEquals(0L, db.getPersisterProgress("unknown")[2]);
+		assertFalse(throttled(db));
+	}
+
+	public void testDeadReplica() {
+		for (long sequence = 1; sequence <= 10; sequence++)
+			log(sequence, HOURS_AGO);
+		InMemoryDatabase db = database(2L);
+		db.logSaveTime("dead", HOURS_AGO, 10L);
+		db.logSaveTime("slow", HOURS_AGO, 4L);
+		db.setClusterLong("persisterProgress_1_heartbeat", HOURS_AGO); // "dead" reported first
+
+		assertTrue(throttled(db));
+	}
+
+	public void testInPlaceUpdatedPayloads() throws Exception {
+		InMemoryDatabase db = database(0);
+		db.setPersistence(InMemoryDatabase.PersistenceMode.WriteBehind);
+		db.setPersistencePayloads(true);
+		provider.createIdGenerator(PersistenceLogEntry.UNIT_NAME, 0L);
+		if (SerializationDefinition.get(LoggedEntity.class) == null) { // the only serialized class in these tests
+			SerializationDefinition.register(LoggedEntity.class);
+			SerializationDefinition.lock();
+		}
+
+		List<StoredBean> inserts = new ArrayList<StoredBean>(Arrays.asList(new LoggedEntity(1L)));
+		List<StoredBean> updates = new ArrayList<StoredBean>(Arrays.asList(new LoggedEntity(2L), new LoggedEntity(3L)));
+		List<InPlaceUpdate<?>> inPlaceUpdates = new ArrayList<InPlaceUpdate<?>>();
+		inPlaceUpdates.add(new InPlaceUpdate<>(3, LoggedEntity.class, 1L, 0, bean -> {}));
+		inPlaceUpdates.add(new InPlaceUpdate<>(4, LoggedEntity.class, 2L, 0, bean -> {}));
+		db.afterSave(new Date(), inserts, updates, new ArrayList<EntityDescriptor>(), inPlaceUpdates);
+
+		PersistenceLogEntry entry = provider.get(PersistenceLogEntry.UNIT_NAME, 1L);
+		assertEquals(1, entry.getNewEntities().size());
+		assertNull(entry.getNewEntities().get(0).getPayload());
+
+		for (PersistenceLogEntry.PersistenceLogRecord r : entry.getUpdatedEntities())
+			if (r.getId() == 3L)
+				assertNotNull(r.getPayload());
+			else
+				assertNull(r.getPayload()); // re-read from the grid after the in-place update
+	}
+}
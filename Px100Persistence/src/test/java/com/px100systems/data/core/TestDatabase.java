@@ -0,0 +1,130 @@
+package com.px100systems.data.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import com.px100systems.data.plugin.storage.EntityCursor;
+
+/**
+ * Database for unit tests: entities by ID (as in shared units), every save recorded as a list of "kind id orderNo" operations.
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+class TestDatabase extends DatabaseStorage {
+	public static class TestEntity extends Entity {
+		public TestEntity() {
+		}
+
+		public TestEntity(long id) {
+			setId(id);
+		}
+	}
+
+	final Map<Long, Entity> entities = new ConcurrentHashMap<>();
+	final List<List<String>> saves = Collections.synchronizedList(new ArrayList<List<String>>());
+	final List<Long> saved = Collections.synchronizedList(new ArrayList<Long>());
+	volatile Long failingId = null;
+	volatile boolean failAfterSave = false;
+
+	@Override
+	public Class<?> entityClass(Class<?> cls) {
+		return cls;
+	}
+
+	@Override
+	protected List<EntityDescriptor> save(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes,
+										  List<InPlaceUpdate<?>> inPlaceUpdates) throws DataStorageException {
+		List<String> operations = new ArrayList<>();
+		Set<Long> ids = new HashSet<>();
+		for (StoredBean bean : inserts) {
+			operations.add("insert " + bean.getId() + " " + bean.getOperationOrderNo());
+			ids.add(bean.getId());
+		}
+		for (StoredBean bean : updates) {
+			operations.add("update " + bean.getId() + " " + bean.getOperationOrderNo());
+			ids.add(bean.getId());
+		}
+		List<EntityDescriptor> result = new ArrayList<>();
+		for (Delete delete : deletes) {
+			operations.add("delete " + delete.getId() + " " + delete.getOperationOrderNo());
+			ids.add(delete.getId());
+			result.add(new EntityDescriptor(delete.getEntityClass(), delete.getId(), delete.getUnitName()));
+		}
+		saves.add(operations);
+
+		if (failingId != null && ids.contains(failingId))
+			throw new DataStorageException("stale");
+		return result;
+	}
+
+	@Override
+	protected void afterSave(Date now, List<StoredBean> allInserts, List<StoredBean> allUpdates, List<EntityDescriptor> deletes,
+							 List<InPlaceUpdate<?>> inPlaceUpdates) throws DataStorageException {
+		if (failAfterSave)
+			throw new DataStorageException("log");
+		for (StoredBean bean : allInserts)
+			saved.add(bean.getId());
+	}
+
+	@Override
+	protected boolean isSaveAtomic() {
+		return true;
+	}
+
+	@Override
+	public boolean isActive() {
+		return true;
+	}
+
+	@Override
+	protected void importChunk(Date now, List<StoredBean> inserts) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected void init(List<EntityInfo> entities, boolean initializeData) {
+	}
+
+	@Override
+	protected void shutdown() {
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected <T> T get(String unitName, Class<T> cls, Long id) {
+		return (T)entities.get(id);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected <T> Map<Long, T> getAll(String unitName, Class<T> cls, Collection<Long> ids) {
+		Map<Long, T> result = new HashMap<>();
+		for (Long id : ids)
+			if (entities.containsKey(id))
+				result.put(id, (T)entities.get(id));
+		return result;
+	}
+
+	@Override
+	protected long count(String unitName, Class<?> cls, Criteria criteria) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected <T> List<T> search(String unitName, Class<T> cls, Criteria criteria, List<String> orderBy, Integer limit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected <T> EntityCursor<T> search(String unitName, Class<T> cls, Criteria criteria, List<String> orderBy) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,214 @@
+package com.px100systems.data.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import com.px100systems.data.plugin.persistence.PersistenceLogEntry;
+import com.px100systems.data.plugin.storage.EntityCursor;
+import com.px100systems.data.plugin.storage.InMemoryStorageLoader;
+import com.px100systems.data.plugin.storage.InMemoryStorageProvider;
+
+/**
+ * Single JVM storage provider for unit tests: maps by ID, atomics, and locks. No queries.
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class TestStorageProvider implements InMemoryStorageProvider {
+	private final Map<String, Map<Object, Object>> units = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> atomics = new ConcurrentHashMap<>();
+	private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+	public final AtomicInteger saves = new AtomicInteger();
+	public volatile boolean failSaves = false;
+
+	public static DatabaseStorage wire(DatabaseStorage db, TestStorageProvider provider) {
+		RuntimeStorage runtimeStorage = new RuntimeStorage();
+		runtimeStorage.setProvider(provider);
+		db.setRuntimeStorage(runtimeStorage);
+		return db;
+	}
+
+	private Map<Object, Object> unit(String unitName) {
+		return units.computeIfAbsent(unitName, u -> new ConcurrentHashMap<>());
+	}
+
+	private AtomicLong atomic(String name) {
+		return atomics.computeIfAbsent(name, n -> new AtomicLong());
+	}
+
+	@Override
+	public <T> void registerMessageCallback(String topicName, MessageCallback<T> c) {
+	}
+
+	@Override
+	public <T> void broadcastMessage(String topicName, T message) {
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	@Override
+	public void createMap(Class<?> cls, String unitName, Map<String, Class<?>> indexedFields, List<CompoundIndexDescriptor> compoundIndexes, boolean transientData) {
+		unit(unitName);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T get(String unitName, Long id) {
+		return (T)unit(unitName).get(id);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Map<Long, T> getAll(String unitName, Collection<Long> ids) {
+		Map<Long, T> result = new HashMap<>();
+		for (Long id : ids) {
+			T bean = (T)unit(unitName).get(id);
+			if (bean != null)
+				result.put(id, bean);
+		}
+		return result;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T get(String unitName, Object key) {
+		return (T)unit(unitName).get(key);
+	}
+
+	@Override
+	public void save(String unitName, Object key, Object bean) {
+		unit(unitName).put(key, bean);
+	}
+
+	@Override
+	public void delete(String unitName, Object key) {
+		unit(unitName).remove(key);
+	}
+
+	@Override
+	public <T> void deleteAll(String unitName, Class<T> cls, Criteria criteria) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> List<T> search(String unitName, Class<T> cls, Criteria criteria, List<String> orderBy, Integer limit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> EntityCursor<T> search(String unitName, Class<T> cls, Criteria criteria, List<String> orderBy) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> List<T> getAll(String unitName, Class<T> cls, Criteria criteria) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long count(String unitName, Class<?> cls, Criteria criteria) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<EntityDescriptor> save(List<StoredBean> inserts, List<StoredBean> updates, List<Delete> deletes, List<InPlaceUpdate<?>> inPlaceUpdates,
+									   boolean serviceData) throws DataStorageException {
+		saves.incrementAndGet();
+		if (failSaves)
+			throw new DataStorageException("failed");
+
+		List<EntityDescriptor> result = new ArrayList<>();
+		for (StoredBean bean : inserts)
+			unit(bean.unitName()).put(bean.getId(), bean);
+		for (StoredBean bean : updates)
+			unit(bean.unitName()).put(bean.getId(), bean);
+		for (Delete delete : deletes) {
+			if (delete.getId() == null)
+				throw new UnsupportedOperationException();
+			unit(delete.getUnitName()).remove(delete.getId());
+			result.add(new EntityDescriptor(delete.getEntityClass(), delete.getId(), delete.getUnitName()));
+		}
+		return result;
+	}
+
+	@Override
+	public void createIdGenerator(String unitName, long value) {
+		atomic("IDgen_" + unitName).set(value);
+	}
+
+	@Override
+	public long generateId(String unitName) {
+		return atomic("IDgen_" + unitName).incrementAndGet();
+	}
+
+	@Override
+	public long generateIds(String unitName, int count) {
+		return atomic("IDgen_" + unitName).addAndGet(count);
+	}
+
+	@Override
+	public long getLastId(String unitName) {
+		return atomic("IDgen_" + unitName).get();
+	}
+
+	@Override
+	public Lock lock(String lockName, Long timeout) {
+		ReentrantLock lock = locks.computeIfAbsent(lockName, n -> new ReentrantLock());
+		try {
+			if (!lock.tryLock(timeout == null ? 0L : timeout, TimeUnit.MILLISECONDS))
+				return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return lock::unlock;
+	}
+
+	@Override
+	public long getAtomicLong(String name, Integer tenantId) {
+		return atomic(name + "@long" + tenantId).get();
+	}
+
+	@Override
+	public void setAtomicLong(String name, Integer tenantId, Long value) {
+		atomic(name + "@long" + tenantId).set(value == null ? 0 : value);
+	}
+
+	@Override
+	public long incrementAtomicLong(String name, Integer tenantId) {
+		return atomic(name + "@long" + tenantId).incrementAndGet();
+	}
+
+	@Override
+	public long decrementAtomicLong(String name, Integer tenantId) {
+		return atomic(name + "@long" + tenantId).decrementAndGet();
+	}
+
+	@Override
+	public boolean compareAndSetAtomicLong(String name, Integer tenantId, long expect, long update) {
+		return atomic(name + "@long" + tenantId).compareAndSet(expect, update);
+	}
+
+	@Override
+	public PersistenceLogEntry createPersistenceLogEntry() {
+		return new PersistenceLogEntry();
+	}
+
+	@Override
+	public InMemoryStorageLoader loader() {
+		throw new UnsupportedOperationException();
+	}
+}
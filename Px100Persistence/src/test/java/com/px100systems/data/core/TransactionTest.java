@@ -0,0 +1,125 @@
+package com.px100systems.data.core;
+
+import java.util.Arrays;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tenant isolation in shared units: entities are keyed by ID alone
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class TransactionTest extends TestCase {
+	public static class SharedEntity extends Entity {
+		public SharedEntity() {
+		}
+
+		public SharedEntity(long id, int tenantId) {
+			setId(id);
+			setTenantId(tenantId);
+		}
+	}
+
+	/**
+	 * Resolved to SharedEntity in testInPlaceUpdateEviction, as a same-named class from another package would be
+	 */
+	public static class OtherSharedEntity extends Entity {
+	}
+
+	private TestDatabase db;
+
+	public TransactionTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TransactionTest.class);
+	}
+
+	@Override
+	protected void setUp() {
+		UnitDescriptor.setShared(SharedEntity.class);
+		db = new TestDatabase();
+		db.entities.put(1L, new SharedEntity(1L, 1));
+		db.entities.put(2L, new SharedEntity(2L, 2));
+	}
+
+	public void testGet() {
+		Transaction tx = new Transaction(db, 1);
+		assertNotNull(tx.get(SharedEntity.class, 1L));
+		assertNull(tx.get(SharedEntity.class, 2L));
+		assertNull(tx.get(SharedEntity.class, 2L)); // not remembered either
+
+		assertNotNull(new Transaction(db, 2).get(SharedEntity.class, 2L));
+	}
+
+	public void testGetAll() {
+		Map<Long, SharedEntity> result = new Transaction(db, 1).getAll(SharedEntity.class, Arrays.asList(1L, 2L));
+		assertEquals(1, result.size());
+		assertTrue(result.containsKey(1L));
+	}
+
+	public void testUpdate() {
+		Transaction tx = new Transaction(db, 1);
+		tx.update(new SharedEntity(1L, 1), false);
+		try {
+			tx.update(new SharedEntity(2L, 2), false);
+			fail("Updated another tenant's entity");
+		} catch (RuntimeException ignored) {
+		}
+	}
+
+	public void testDelete() {
+		Transaction tx = new Transaction(db, 1);
+		try {
+			tx.deleteWithDependents(new SharedEntity(2L, 2));
+			fail("Deleted another tenant's entity");
+		} catch (RuntimeException ignored) {
+		}
+	}
+
+	public void testInPlaceUpdateEviction() {
+		TestDatabase db = new TestDatabase() {
+			@Override
+			public Class<?> entityClass(Class<?> cls) {
+				return cls == OtherSharedEntity.class ? SharedEntity.class : cls;
+			}
+		};
+		db.entities.put(1L, new SharedEntity(1L, 1));
+		Transaction tx = new Transaction(db, 1);
+		SharedEntity cached = tx.get(SharedEntity.class, 1L);
+
+		db.entities.put(1L, new SharedEntity(1L, 1));
+		tx.update(OtherSharedEntity.class, 1L, bean -> {});
+		assertNotSame(cached, tx.get(SharedEntity.class, 1L));
+
+		cached = tx.get(SharedEntity.class, 1L);
+		db.entities.put(1L, new SharedEntity(1L, 1));
+		tx.updateWhere(OtherSharedEntity.class, null, bean -> {});
+		assertNotSame(cached, tx.get(SharedEntity.class, 1L));
+	}
+
+	public void testInPlaceUpdate() {
+		InPlaceUpdate<SharedEntity> update = new InPlaceUpdate<>(0, SharedEntity.class, 2L, 1, bean -> bean.setTenantId(1));
+		SharedEntity foreign = new SharedEntity(2L, 2);
+		try {
+			update.eval(foreign);
+			fail("Updated another tenant's entity in place");
+		} catch (RuntimeException ignored) {
+		}
+		assertEquals(Integer.valueOf(2), foreign.getTenantId());
+
+		SharedEntity own = new SharedEntity(1L, 1);
+		new InPlaceUpdate<>(0, SharedEntity.class, 1L, 1, (SharedEntity bean) -> bean.setId(3L)).eval(own);
+		assertEquals(Long.valueOf(3L), own.getId());
+	}
+
+	public void testDetachedInPlaceUpdates() {
+		Transaction tx = new Transaction(null, 1);
+		tx.update(SharedEntity.class, 1L, bean -> {});
+		assertNull(tx.updateWhere(SharedEntity.class, null, bean -> {}).getAffectedIds());
+	}
+}
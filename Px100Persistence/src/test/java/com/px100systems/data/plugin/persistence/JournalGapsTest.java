@@ -0,0 +1,83 @@
+package com.px100systems.data.plugin.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Persistence log gaps: settled and expired missing entries
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class JournalGapsTest extends TestCase {
+	private static final int GAP_SECONDS = 60;
+	private static final long NOW = 1000000000L;
+
+	public JournalGapsTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(JournalGapsTest.class);
+	}
+
+	private static Map<Long, PersistenceLogEntry> entries(long time, long... ids) {
+		Map<Long, PersistenceLogEntry> result = new HashMap<Long, PersistenceLogEntry>();
+		for (long id : ids) {
+			PersistenceLogEntry entry = new PersistenceLogEntry();
+			entry.setId(id);
+			entry.setTime(time);
+			result.put(id, entry);
+		}
+		return result;
+	}
+
+	public void testSettledFollower() {
+		JournalGaps gaps = new JournalGaps();
+		assertEquals(0L, gaps.settledSequence(entries(NOW - 1000L, 1, 3), NOW, GAP_SECONDS));
+		assertEquals(0L, gaps.settledSequence(new HashMap<Long, PersistenceLogEntry>(), NOW, GAP_SECONDS));
+
+		Map<Long, PersistenceLogEntry> entries = entries(NOW - GAP_SECONDS * 1000L - 1, 1, 3);
+		entries.putAll(entries(NOW, 5));
+		assertEquals(3L, gaps.settledSequence(entries, NOW, GAP_SECONDS));
+	}
+
+	public void testGapWaits() {
+		JournalGaps gaps = new JournalGaps();
+		Map<Long, PersistenceLogEntry> entries = entries(NOW, 1, 4);
+		assertFalse(gaps.expired(2, 4, entries, NOW, GAP_SECONDS));
+		assertFalse(gaps.expired(2, 4, entries, NOW + GAP_SECONDS * 1000L - 1, GAP_SECONDS));
+		assertFalse(gaps.expired(3, 4, entries, NOW + GAP_SECONDS * 1000L - 1, GAP_SECONDS));
+	}
+
+	public void testExpiry() {
+		JournalGaps gaps = new JournalGaps();
+		Map<Long, PersistenceLogEntry> entries = entries(NOW, 1, 4);
+		assertFalse(gaps.expired(2, 4, entries, NOW, GAP_SECONDS));
+
+		// Gaps noticed together expire together
+		long later = NOW + GAP_SECONDS * 1000L;
+		assertTrue(gaps.expired(2, 4, entries, later, GAP_SECONDS));
+		assertTrue(gaps.expired(3, 4, entries, later, GAP_SECONDS));
+
+		// A gap noticed later waits for its own timeout
+		assertFalse(gaps.expired(5, 5, entries, later, GAP_SECONDS));
+		assertFalse(gaps.expired(5, 5, entries, later + 1000L, GAP_SECONDS));
+		assertTrue(gaps.expired(5, 5, entries, later + GAP_SECONDS * 1000L, GAP_SECONDS));
+	}
+
+	public void testPassedGapsForgotten() {
+		JournalGaps gaps = new JournalGaps();
+		Map<Long, PersistenceLogEntry> entries = entries(NOW, 1, 4);
+		assertFalse(gaps.expired(2, 4, entries, NOW, GAP_SECONDS));
+
+		gaps.passed(2);
+		long later = NOW + GAP_SECONDS * 1000L;
+		assertFalse(gaps.expired(2, 4, entries, later, GAP_SECONDS)); // noticed anew
+		assertTrue(gaps.expired(3, 4, entries, later, GAP_SECONDS)); // still tracked
+		assertTrue(gaps.expired(2, 4, entries, later + GAP_SECONDS * 1000L, GAP_SECONDS));
+	}
+}
@@ -0,0 +1,123 @@
+package com.px100systems.data.plugin.persistence;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import com.px100systems.data.core.InMemoryDatabase;
+import com.px100systems.data.core.Lock;
+import com.px100systems.data.core.TestStorageProvider;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Sharded persisters: claiming, lease expiry, and takeover
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class PersisterShardsTest extends TestCase {
+	private static final List<String> STORAGES = Arrays.asList("a", "b", "c", "d");
+
+	private InMemoryDatabase cluster;
+
+	public PersisterShardsTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(PersisterShardsTest.class);
+	}
+
+	@Override
+	protected void setUp() {
+		cluster = new InMemoryDatabase();
+		TestStorageProvider.wire(cluster, new TestStorageProvider());
+	}
+
+	private PersisterShards persister(int leaseSeconds) {
+		return new PersisterShards(cluster, STORAGES, 0, 1, leaseSeconds);
+	}
+
+	public void testClaim() {
+		PersisterShards first = persister(600);
+		assertEquals(new HashSet<>(STORAGES), first.rebalance().keySet());
+
+		PersisterShards second = persister(600);
+		assertTrue(second.rebalance().isEmpty()); // joining
+
+		assertEquals(2, first.rebalance().size()); // released the extra ones
+		Set<String> claimed = second.rebalance().keySet();
+		assertEquals(2, claimed.size());
+
+		Set<String> all = new HashSet<>(first.rebalance().keySet());
+		for (String storage : claimed)
+			assertTrue(all.add(storage));
+		assertEquals(new HashSet<>(STORAGES), all);
+
+		first.renew();
+		second.renew();
+	}
+
+	public void testExpiryAndTakeover() throws InterruptedException {
+		PersisterShards crashed = persister(0);
+		crashed.rebalance();
+		crashed.progress(10L, 1000L);
+		Thread.sleep(10L);
+
+		PersisterShards next = persister(600);
+		Map<String, Long> claimed = next.rebalance();
+		assertEquals(new HashSet<>(STORAGES), claimed.keySet());
+		for (Long sequence : claimed.values())
+			assertEquals(Long.valueOf(10L), sequence); // resumes where the previous owner left off
+
+		try {
+			crashed.renew();
+			fail("Renewed a storage taken over by another persister");
+		} catch (RuntimeException ignored) {
+		}
+		next.renew();
+	}
+
+	public void testRelease() {
+		PersisterShards stopped = persister(600);
+		stopped.rebalance();
+		stopped.progress(5L, 500L);
+		assertTrue(Arrays.equals(new long[] {5L, 500L}, stopped.clusterProgress()));
+		stopped.release();
+
+		PersisterShards next = persister(600);
+		assertEquals(new HashSet<>(STORAGES), next.rebalance().keySet());
+		next.progress(7L, 700L);
+		assertTrue(Arrays.equals(new long[] {7L, 700L}, next.clusterProgress()));
+	}
+
+	public void testReleaseLockTimeout() throws InterruptedException {
+		PersisterShards stopped = persister(600);
+		stopped.rebalance();
+
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		Thread holder = new Thread(() -> {
+			Lock lock = cluster.clusterLock("persisterShards_0", 1000L);
+			locked.countDown();
+			try {
+				done.await();
+			} catch (InterruptedException ignored) {
+			} finally {
+				lock.unlock();
+			}
+		});
+		holder.start();
+		locked.await();
+
+		stopped.release(); // times out: leases are left to expire
+		done.countDown();
+		holder.join();
+
+		assertTrue(persister(600).rebalance().isEmpty());
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+/**
+ * Retryable rejection: the database is overloaded (e.g. write-behind persistence fell too far behind) and sheds some writes.
+ * Nothing was saved. The caller may retry the whole transaction after the suggested pause.
+ * 
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+*/
+public class DataStorageBusyException extends DataStorageException {
+	private static final long serialVersionUID = 1L;
+
+	private long retryAfterMillis;
+
+	public DataStorageBusyException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	/**
+	 * Suggested pause before retrying
+	 * @return pause in milliseconds
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+}
@@ -53,6 +53,14 @@ public class Delete {
 		id = null;
 	}
 
+	public Delete(int operationOrderNo, Delete delete) {
+		this.operationOrderNo = operationOrderNo;
+		entityClass = delete.entityClass;
+		unitName = delete.unitName;
+		criteria = delete.criteria;
+		id = delete.id;
+	}
+
 	public String getUnitName() {
 		return unitName;
 	}
@@ -30,6 +30,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Base stored/persistible entity - a subclass of Storedbean that defines the Long id (mandatory PK).<br>
@@ -48,7 +50,8 @@ import java.util.Map;
  * You can still use an Entity-derived class, just put it in a different (not scanned) package.<br>
  * Generally entities should be self-contained and complete, however if they go over some size threshold e.g. 5K,
  * it makes sense splitting them into several scalar records of different (logical) type grouped under the same ID; 
- * per screen (CRUD use case) or group of screens. Main entity plus those satellite ones (saved together in one transaction).<br>
+ * per screen (CRUD use case) or group of screens. Main entity plus those satellite ones (saved together in one transaction).
+ * Annotate satellites with @AffinityWith(MainEntity.class) to keep them in the main entity's grid partition.<br>
  * Long collections of records (beyond 100) should also be moved out and belong to the same ID (saved together with the parent in one transaction).
  * Overwrite Entity.cascadeDelete(0 for cascade-deletes of those. Estimated reasonable size - probably a couple thousand rows max, not millions.<br>
  * <br>
@@ -68,6 +71,10 @@ import java.util.Map;
 public abstract class Entity extends StoredBean implements Externalizable {
 	public static final String TENANT_DELIMITER = "___";
 
+	private static final ConcurrentMap<Class<?>, Map<String, Class<?>>> indexCache = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<Class<?>, Map<String, Class<?>>> queryFieldCache = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<Class<?>, List<CompoundIndexDescriptor>> compoundIndexCache = new ConcurrentHashMap<>();
+
 	private Integer tenantId = null; // whether used or not doesn't matter - needed for sharding/partition in the distributed storage (cluster)
 	private Date createdAt; // automatically set by DataStorage - do not mess with it
 	private Date modifiedAt; // automatically set by DataStorage - do not mess with it
@@ -104,11 +111,11 @@ public abstract class Entity extends StoredBean implements Externalizable {
 	}
 
 	/**
-	 * Entity unit od storage (Hazelcast map, Mongo document, or Ignite cache) name
+	 * Entity unit od storage (Hazelcast map, Mongo document, or Ignite cache) name - interned, see {@link UnitDescriptor}
 	 * @return the tenant-specific unit name
 	 */
 	public static String unitFromClass(Class<?> entityClass, Integer tenantId) {
-		return entityClass.getSimpleName() + TENANT_DELIMITER + tenantId;
+		return UnitDescriptor.get(entityClass, tenantId).getName();
 	}
 
 	/**
@@ -120,7 +127,21 @@ public abstract class Entity extends StoredBean implements Externalizable {
 		return unitName();
 	}
 	
+	/**
+	 * Indexed fields (with the "*" suffix for ordered ones). Reflected once per class.
+	 * @param entityClass entity class
+	 * @return a modifiable copy of the index map
+	 */
 	public static Map<String, Class<?>> indexes(Class<?> entityClass) {
+		Map<String, Class<?>> result = indexCache.get(entityClass);
+		if (result == null) {
+			result = reflectIndexes(entityClass);
+			indexCache.putIfAbsent(entityClass, result);
+		}
+		return new HashMap<>(result);
+	}
+
+	private static Map<String, Class<?>> reflectIndexes(Class<?> entityClass) {
 		Map<String, Class<?>> result = new HashMap<>();
 
 		for (Method m : entityClass.getDeclaredMethods()) {
@@ -145,7 +166,21 @@ public abstract class Entity extends StoredBean implements Externalizable {
 		return result;	
 	}
 
+	/**
+	 * Non-indexed query fields. Reflected once per class.
+	 * @param entityClass entity class
+	 * @return a modifiable copy of the field map
+	 */
 	public static Map<String, Class<?>> queryFields(Class<?> entityClass) {
+		Map<String, Class<?>> result = queryFieldCache.get(entityClass);
+		if (result == null) {
+			result = reflectQueryFields(entityClass);
+			queryFieldCache.putIfAbsent(entityClass, result);
+		}
+		return new HashMap<>(result);
+	}
+
+	private static Map<String, Class<?>> reflectQueryFields(Class<?> entityClass) {
 		Map<String, Class<?>> result = new HashMap<>();
 
 		for (Method m : entityClass.getDeclaredMethods()) {
@@ -170,7 +205,21 @@ public abstract class Entity extends StoredBean implements Externalizable {
 		return result;
 	}
 
+	/**
+	 * Compound indexes. Reflected once per class.
+	 * @param entityClass entity class
+	 * @return a modifiable copy of the index list
+	 */
 	public static List<CompoundIndexDescriptor> compoundIndexes(Class<?> entityClass) {
+		List<CompoundIndexDescriptor> result = compoundIndexCache.get(entityClass);
+		if (result == null) {
+			result = reflectCompoundIndexes(entityClass);
+			compoundIndexCache.putIfAbsent(entityClass, result);
+		}
+		return new ArrayList<>(result);
+	}
+
+	private static List<CompoundIndexDescriptor> reflectCompoundIndexes(Class<?> entityClass) {
 		List<CompoundIndexDescriptor> result = new ArrayList<>();
 
 		CompoundIndexes indexes = entityClass.getAnnotation(CompoundIndexes.class);
@@ -17,7 +17,8 @@
 package com.px100systems.data.core;
 
 /**
- * Database entity descriptor. Used internally - to return a list of entity unit anmes and IDs deleted by the Transaction - to pass it to write-behind.
+ * Database entity descriptor. Used internally - to return a list of entity unit anmes and IDs deleted by the Transaction - to pass it to write-behind.<br>
+ * Bulk (criteria-based) deletes are described by one compact batched descriptor per unit: a primitive ID array instead of a descriptor per entity.
  *
  * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
  * @author Alex Rogachevsky
@@ -26,6 +27,7 @@ public class EntityDescriptor {
 	private Class<?> entityClass;
 	private String unit;
 	private Long id;
+	private long[] ids = null;
 
 	public EntityDescriptor(Class<?> entityClass, Long id, String unit) {
 		this.entityClass = entityClass;
@@ -33,14 +35,39 @@ public class EntityDescriptor {
 		this.unit = unit;
 	}
 
+	/**
+	 * Batched descriptor
+	 * @param entityClass entity class
+	 * @param unit unit name
+	 * @param ids entity IDs
+	 */
+	public EntityDescriptor(Class<?> entityClass, String unit, long[] ids) {
+		this.entityClass = entityClass;
+		this.id = null;
+		this.unit = unit;
+		this.ids = ids;
+	}
+
 	public Class<?> getEntityClass() {
 		return entityClass;
 	}
 
+	/**
+	 * Single entity ID
+	 * @return the ID or null for batched descriptors
+	 */
 	public Long getId() {
 		return id;
 	}
 
+	/**
+	 * All entity IDs: for both single and batched descriptors
+	 * @return IDs
+	 */
+	public long[] getIds() {
+		return ids != null ? ids : new long[] {id};
+	}
+
 	public String getUnit() {
 		return unit;
 	}
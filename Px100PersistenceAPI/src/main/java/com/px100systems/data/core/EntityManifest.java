@@ -0,0 +1,72 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Build-time entity manifest: the list of all (non-abstract, top-level) Entity subclasses compiled into a jar or a class folder.
+ * Generated by {@link EntityManifestProcessor} (enabled automatically by having Px100 Data on the compiler's classpath).<br>
+ * The database reads manifests of all jars (classpath resources) instead of scanning the classpath, which is much faster on big WARs.
+ * Without any manifests it falls back to scanning - so do base entity packages without manifest entries.<br>
+ * <br>
+ * <b>Note:</b> incremental (IDE) compilation may produce a partial manifest - rebuild the module
+ * or set DatabaseStorage's classpathScan to true in development.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class EntityManifest {
+	public static final String RESOURCE = "META-INF/px100/entities.txt";
+
+	/**
+	 * Load entity class names from all manifests visible to the class loader
+	 * @param classLoader class loader
+	 * @return entity class names or null if there are no manifests
+	 */
+	public static List<String> load(ClassLoader classLoader) {
+		try {
+			Enumeration<URL> resources = classLoader.getResources(RESOURCE);
+			if (!resources.hasMoreElements())
+				return null;
+
+			List<String> result = new ArrayList<>();
+			while (resources.hasMoreElements()) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(resources.nextElement().openStream(), StandardCharsets.UTF_8));
+				try {
+					for (String line = in.readLine(); line != null; line = in.readLine()) {
+						line = line.trim();
+						if (!line.isEmpty() && !line.startsWith("#"))
+							result.add(line);
+					}
+				} finally {
+					in.close();
+				}
+			}
+			return result;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor generating the {@link EntityManifest} of the module being compiled.
+ * Registered as a service, so javac picks it up from the classpath automatically. It doesn't claim any annotations.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+@SupportedAnnotationTypes("*")
+public class EntityManifestProcessor extends AbstractProcessor {
+	private Set<String> entities = new TreeSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		// By name: no need to load runtime classes into the compiler
+		TypeElement entityElement = processingEnv.getElementUtils().getTypeElement("com.px100systems.data.core.Entity");
+		if (entityElement == null)
+			return false;
+
+		if (!roundEnv.processingOver()) {
+			Types types = processingEnv.getTypeUtils();
+			TypeMirror entityType = types.erasure(entityElement.asType());
+			for (Element e : roundEnv.getRootElements())
+				if (e.getKind() == ElementKind.CLASS && !e.getModifiers().contains(Modifier.ABSTRACT) && types.isSubtype(types.erasure(e.asType()), entityType))
+					entities.add(processingEnv.getElementUtils().getBinaryName((TypeElement)e).toString());
+		} else if (!entities.isEmpty())
+			try {
+				FileObject manifest = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", EntityManifest.RESOURCE);
+				Writer out = new OutputStreamWriter(manifest.openOutputStream(), StandardCharsets.UTF_8);
+				try {
+					out.write("# Generated by " + getClass().getName() + "\n");
+					for (String entity : entities)
+						out.write(entity + "\n");
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Cannot write the entity manifest: " + e.getMessage());
+			}
+
+		return false;
+	}
+}
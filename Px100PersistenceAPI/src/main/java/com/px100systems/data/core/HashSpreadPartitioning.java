@@ -0,0 +1,44 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+/**
+ * Spreads every unit evenly across the grid by ID: no co-location at all. Best for large units and tenants.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class HashSpreadPartitioning implements PartitioningStrategy {
+	@Override
+	public int partitionHash(UnitDescriptor unit, long id) {
+		return mix(31L * unit.getName().hashCode() + id);
+	}
+
+	/**
+	 * 64-bit finalizer (MurmurHash3 fmix64) folded to int: consecutive IDs land on unrelated partitions.
+	 * @param value value
+	 * @return the hash
+	 */
+	public static int mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int)value;
+	}
+}
@@ -17,9 +17,14 @@
 package com.px100systems.data.core;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
- * In-place update. used internally by the Transaction.
+ * In-place update: by ID or all entities matching some criteria. used internally by the Transaction.<br>
+ * Criteria-based updates report the affected IDs after execution.
  *
  * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
  * @author Alex Rogachevsky
@@ -31,6 +36,9 @@ public class InPlaceUpdate<T> implements Serializable {
 	private Long id;
 	private EntityProcessor<T> processor;
 	private String unitName;
+	private Integer tenantId = null; // updates by ID in shared units: entities of other tenants are rejected
+	private transient Criteria criteria = null;
+	private transient long[] affectedIds = null;
 
 	@SuppressWarnings("unused")
 	public InPlaceUpdate() {
@@ -42,10 +50,23 @@ public class InPlaceUpdate<T> implements Serializable {
 		this.id = id;
 		this.processor = processor;
 		this.unitName = Entity.unitFromClass(cls, tenantId);
+		if (UnitDescriptor.get(cls, tenantId).isShared())
+			this.tenantId = tenantId;
+	}
+
+	public InPlaceUpdate(int operationOrderNo, Class<T> cls, int tenantId, Criteria criteria, EntityProcessor<T> processor) {
+		this.operationOrderNo = operationOrderNo;
+		this.cls = cls;
+		this.id = null;
+		this.criteria = criteria;
+		this.processor = processor;
+		this.unitName = Entity.unitFromClass(cls, tenantId);
 	}
 
 	@SuppressWarnings("unchecked")
 	public void eval(Object value) {
+		if (tenantId != null && value instanceof Entity && !tenantId.equals(((Entity)value).getTenantId()))
+			throw new RuntimeException(cls.getSimpleName() + " " + id + " belongs to another tenant");
 		processor.process((T)value);
 	}
 
@@ -64,4 +85,52 @@ public class InPlaceUpdate<T> implements Serializable {
 	public String getUnitName() {
 		return unitName;
 	}
+
+	public EntityProcessor<T> getProcessor() {
+		return processor;
+	}
+
+	/**
+	 * Update filter
+	 * @return criteria or null for updates by ID
+	 */
+	public Criteria getCriteria() {
+		return criteria;
+	}
+
+	/**
+	 * IDs of updated entities: set by the storage provider for criteria-based updates
+	 * @return updated IDs or null if not executed yet
+	 */
+	public long[] getAffectedIds() {
+		return criteria == null ? new long[] {id} : affectedIds;
+	}
+
+	public void setAffectedIds(long[] affectedIds) {
+		this.affectedIds = affectedIds;
+	}
+
+	/**
+	 * Splits in-place updates into batches that can be dispatched at once (e.g. via executeOnKeys or invokeAll):
+	 * consecutive updates of the same unit with the same processor. A repeated ID starts a new batch to preserve the order of updates.
+	 * Criteria-based updates are always batches of their own.
+	 * @param updates in-place updates in the transaction order
+	 * @return batches
+	 */
+	public static List<List<InPlaceUpdate<?>>> batches(List<InPlaceUpdate<?>> updates) {
+		List<List<InPlaceUpdate<?>>> result = new ArrayList<>();
+		List<InPlaceUpdate<?>> batch = null;
+		Set<Long> ids = new HashSet<>();
+		for (InPlaceUpdate<?> u : updates) {
+			if (batch == null || u.criteria != null || batch.get(0).criteria != null || batch.get(0).processor != u.processor ||
+				!batch.get(0).unitName.equals(u.unitName) || ids.contains(u.id)) {
+				batch = new ArrayList<>();
+				result.add(batch);
+				ids.clear();
+			}
+			batch.add(u);
+			ids.add(u.id);
+		}
+		return result;
+	}
 }
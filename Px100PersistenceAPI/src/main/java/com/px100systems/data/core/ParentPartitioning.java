@@ -0,0 +1,33 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+/**
+ * Co-locates records with the same ID across the tenant's units using this strategy: a parent entity and its satellite records
+ * (saved under the parent ID - see {@link Entity}) share a partition, while different parents are spread evenly.<br>
+ * Both the parent and satellite entities should use it.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class ParentPartitioning implements PartitioningStrategy {
+	@Override
+	public int partitionHash(UnitDescriptor unit, long id) {
+		Integer tenantId = unit.getTenantId();
+		return HashSpreadPartitioning.mix(31L * (tenantId == null ? 0 : tenantId) + id);
+	}
+}
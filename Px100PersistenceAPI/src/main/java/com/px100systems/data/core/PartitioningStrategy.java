@@ -0,0 +1,38 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+/**
+ * Grid partitioning (data affinity) strategy: which records of a unit share a partition (and hence a member).<br>
+ * Selected per entity with {@link Partitioning}. Entities w/o it keep the provider's built-in partitioning
+ * (see the provider's maxPartitionSize).<br>
+ * The hash should be stable across JVMs (e.g. based on String.hashCode() and numbers), since every node computes it independently.<br>
+ * Implementations should be stateless and have a public no-arg constructor: they are instantiated once per class.<br>
+ * Changing the strategy of a populated unit requires a cold grid restart (reload from the database).<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public interface PartitioningStrategy {
+	/**
+	 * Partition (affinity) hash: records with equal hashes are co-located.
+	 * @param unit storage unit
+	 * @param id record ID
+	 * @return the partition hash
+	 */
+	int partitionHash(UnitDescriptor unit, long id);
+}
@@ -0,0 +1,33 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+/**
+ * Keeps all records of a tenant (across all units using this strategy) in one partition.
+ * Tenant-wide queries and transactions become single-member, but the tenant size is limited by one partition.
+ * Suitable for small tenants or small tenant-specific units.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class TenantPartitioning implements PartitioningStrategy {
+	@Override
+	public int partitionHash(UnitDescriptor unit, long id) {
+		Integer tenantId = unit.getTenantId();
+		return HashSpreadPartitioning.mix(tenantId == null ? 0 : tenantId);
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Interned unit (Hazelcast map, Mongo document, or Ignite cache) descriptor: one per (entity class, tenant) or per arbitrary unit name.<br>
+ * Unit names are built once and reused, so the hot path (Transaction reads, StoredBean.unitName() in provider saves) doesn't allocate strings.<br>
+ * The name is logical (tenant-specific) and used everywhere including the persistence layer. Grid providers store the unit in
+ * {@link #getStorageName()}, which is shared by all tenants of "shared-unit" entities (see {@link #setShared(Class)}).<br>
+ * Entity units also resolve their {@link PartitioningStrategy} (see {@link Partitioning}) and {@link AffinityWith} parent unit once.<br>
+ * Descriptors also carry two provider-owned slots for the cached storage (map/cache) and ID generator handles.
+ * Providers should call {@link #resetHandles()} on start, since handles belong to the grid instance.<br>
+ * <br>
+ * The local ID is a JVM-specific dense integer (never stored or sent over the wire) to be used as a compact unit key in in-process data structures.<br>
+ * <br>
+ * Only known units are interned: entity units and explicitly registered ones (see {@link #register}, e.g. by providers creating maps).
+ * Other names get throwaway descriptors, so arbitrary unit names don't accumulate. Descriptors of removed tenants are dropped
+ * via {@link #removeTenant}, and everything - on database shutdown via {@link #clear}.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public final class UnitDescriptor {
+	private static final Integer NO_TENANT = Integer.MIN_VALUE;
+
+	public static final String SHARED_SUFFIX = "shared";
+
+	private static final AtomicInteger sequence = new AtomicInteger();
+	private static final ConcurrentMap<Class<?>, ConcurrentMap<Integer, UnitDescriptor>> byClass = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, UnitDescriptor> byName = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<Class<?>, PartitioningStrategy> strategies = new ConcurrentHashMap<>();
+	private static volatile Function<String, Class<?>> entityResolver = null;
+	private static final Set<Class<?>> sharedClasses = ConcurrentHashMap.newKeySet();
+
+	private final int localId;
+	private final String name;
+	private volatile Class<?> entityClass;
+	private volatile Integer tenantId;
+
+	private volatile String storageName = null;
+	private volatile boolean strategyResolved = false;
+	private volatile PartitioningStrategy partitioningStrategy = null;
+
+	private volatile UnitDescriptor affinityUnit = null;
+
+	private volatile Object storageHandle;
+	private volatile Object idGeneratorHandle;
+
+	private UnitDescriptor(String name, Class<?> entityClass, Integer tenantId, boolean interned) {
+		this.localId = interned ? sequence.getAndIncrement() : -1;
+		this.name = name;
+		this.entityClass = entityClass;
+		this.tenantId = tenantId;
+	}
+
+	/**
+	 * Entity unit descriptor
+	 * @param entityClass entity class
+	 * @param tenantId tenant ID
+	 * @return the interned descriptor
+	 */
+	public static UnitDescriptor get(Class<?> entityClass, Integer tenantId) {
+		ConcurrentMap<Integer, UnitDescriptor> tenants = byClass.get(entityClass);
+		if (tenants == null)
+			tenants = byClass.computeIfAbsent(entityClass, c -> new ConcurrentHashMap<>());
+
+		Integer key = tenantId == null ? NO_TENANT : tenantId;
+		UnitDescriptor result = tenants.get(key);
+		if (result == null)
+			result = tenants.computeIfAbsent(key, t -> intern(entityClass.getSimpleName() + Entity.TENANT_DELIMITER + tenantId, entityClass, tenantId));
+		return result;
+	}
+
+	/**
+	 * Unit descriptor by name: entity units (resolved by the entity class) or registered (service, transient) units.
+	 * @param unitName unit name
+	 * @return the interned descriptor or a throwaway one (w/o the local ID and cached handles) if the unit isn't known
+	 */
+	public static UnitDescriptor get(String unitName) {
+		UnitDescriptor result = lookup(unitName);
+		return result != null ? result : new UnitDescriptor(unitName, null, null, false);
+	}
+
+	/**
+	 * Interns the unit: service, transient, or any other units known to exist e.g. when their maps are created.
+	 * Idempotent and as cheap as {@link #get(String)} for already known units.
+	 * @param unitName unit name
+	 * @return the interned descriptor
+	 */
+	public static UnitDescriptor register(String unitName) {
+		UnitDescriptor result = lookup(unitName);
+		return result != null ? result : intern(unitName, null, null);
+	}
+
+	private static UnitDescriptor lookup(String unitName) {
+		UnitDescriptor result = byName.get(unitName);
+		if (result != null)
+			return result;
+
+		int delimiter = unitName.lastIndexOf(Entity.TENANT_DELIMITER);
+		Function<String, Class<?>> resolver = entityResolver;
+		if (delimiter > 0 && resolver != null) {
+			Class<?> entityClass = resolver.apply(unitName.substring(0, delimiter));
+			if (entityClass != null)
+				try {
+					String tenant = unitName.substring(delimiter + Entity.TENANT_DELIMITER.length());
+					return get(entityClass, tenant.equals("null") ? null : Integer.valueOf(tenant));
+				} catch (NumberFormatException ignored) {
+				}
+		}
+		return null;
+	}
+
+	/**
+	 * Drops the tenant's entity unit descriptors e.g. when the tenant is removed (or re-added), so they don't accumulate.
+	 * @param tenantId tenant ID
+	 */
+	public static void removeTenant(Integer tenantId) {
+		Integer key = tenantId == null ? NO_TENANT : tenantId;
+		for (ConcurrentMap<Integer, UnitDescriptor> tenants : byClass.values())
+			tenants.remove(key);
+		byName.values().removeIf(unit -> unit.entityClass != null && key.equals(unit.tenantId == null ? NO_TENANT : unit.tenantId));
+	}
+
+	/**
+	 * Drops all descriptors, shared-unit settings, and the entity resolver e.g. when the database shuts down.
+	 */
+	public static void clear() {
+		byClass.clear();
+		byName.clear();
+		sharedClasses.clear();
+		entityResolver = null;
+	}
+
+	/**
+	 * Entity class resolver by its simple name for units only known by name (e.g. coming from the persistence log).
+	 * Set by the database on startup.
+	 * @param resolver the resolver
+	 */
+	public static void setEntityResolver(Function<String, Class<?>> resolver) {
+		entityResolver = resolver;
+	}
+
+	private static UnitDescriptor intern(String unitName, Class<?> entityClass, Integer tenantId) {
+		UnitDescriptor result = byName.computeIfAbsent(unitName, n -> new UnitDescriptor(n, entityClass, tenantId, true));
+		if (entityClass != null && result.entityClass == null) { // previously seen by name only e.g. loaded from a persistence log
+			result.tenantId = tenantId;
+			result.entityClass = entityClass;
+			result.strategyResolved = false;
+			result.affinityUnit = null;
+			result.storageName = null;
+		}
+		return result;
+	}
+
+	/**
+	 * Stores all tenants of the entity in one (physical) storage unit. Set by the database on startup before the grid is used.
+	 * @param entityClass entity class
+	 */
+	public static void setShared(Class<?> entityClass) {
+		sharedClasses.add(entityClass);
+		for (UnitDescriptor unit : byName.values())
+			if (unit.entityClass == entityClass) {
+				unit.storageName = null;
+				unit.storageHandle = null;
+				unit.idGeneratorHandle = null;
+			}
+	}
+
+	/**
+	 * Drops cached provider handles of all units e.g. when a new grid instance starts.
+	 */
+	public static void resetHandles() {
+		for (UnitDescriptor unit : byName.values()) {
+			unit.storageHandle = null;
+			unit.idGeneratorHandle = null;
+		}
+	}
+
+	/**
+	 * Unit name
+	 * @return the unit name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Physical storage unit name (grid map or cache): the name itself or the shared one for all tenants of the entity.
+	 * @return the storage name
+	 */
+	public String getStorageName() {
+		String result = storageName;
+		if (result == null) {
+			result = isShared() ? entityClass.getSimpleName() + Entity.TENANT_DELIMITER + SHARED_SUFFIX : name;
+			storageName = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Whether all tenants of the entity share one storage unit
+	 * @return true if shared
+	 */
+	public boolean isShared() {
+		return entityClass != null && sharedClasses.contains(entityClass);
+	}
+
+	/**
+	 * Restricts the criteria to the unit's tenant if the storage unit is shared
+	 * @param criteria criteria (null means all)
+	 * @return the tenant-specific criteria
+	 */
+	public Criteria scope(Criteria criteria) {
+		if (!isShared())
+			return criteria;
+
+		Criteria tenant = Criteria.eq("tenantId", tenantId);
+		return criteria == null ? tenant : Criteria.and(tenant, criteria);
+	}
+
+	/**
+	 * Entity class
+	 * @return the entity class or null for non-entity units
+	 */
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	/**
+	 * Tenant ID
+	 * @return the tenant ID or null for non-entity units
+	 */
+	public Integer getTenantId() {
+		return tenantId;
+	}
+
+	/**
+	 * JVM-local dense unit ID
+	 * @return the local ID or -1 if the unit isn't interned
+	 */
+	public int getLocalId() {
+		return localId;
+	}
+
+	/**
+	 * Entity partitioning strategy
+	 * @return the strategy or null if the provider's default partitioning should be used
+	 */
+	public PartitioningStrategy getPartitioningStrategy() {
+		if (!strategyResolved) {
+			partitioningStrategy = resolveStrategy(entityClass);
+			strategyResolved = true;
+		}
+		return partitioningStrategy;
+	}
+
+	/**
+	 * Explicit partitioning strategy for units w/o an entity class e.g. the persistence log. Set on startup before the grid is used.
+	 * @param strategy the strategy
+	 */
+	public void setPartitioningStrategy(PartitioningStrategy strategy) {
+		partitioningStrategy = strategy;
+		strategyResolved = true;
+	}
+
+	/**
+	 * Unit whose partitioning this unit follows: the top {@link AffinityWith} parent unit of the same tenant or this unit itself.
+	 * Providers should partition keys as if they belonged to that unit.
+	 * @return the affinity unit
+	 */
+	public UnitDescriptor getAffinityUnit() {
+		UnitDescriptor result = affinityUnit;
+		if (result == null) {
+			result = this;
+			for (int depth = 0; result.entityClass != null; depth++) {
+				AffinityWith annotation = result.entityClass.getAnnotation(AffinityWith.class);
+				if (annotation == null)
+					break;
+				if (depth > 16)
+					throw new RuntimeException("Circular @AffinityWith: " + entityClass.getName());
+				result = get(annotation.value(), tenantId);
+			}
+			affinityUnit = result;
+		}
+		return result;
+	}
+
+	private static PartitioningStrategy resolveStrategy(Class<?> entityClass) {
+		if (entityClass == null)
+			return null;
+
+		Partitioning annotation = entityClass.getAnnotation(Partitioning.class);
+		if (annotation == null)
+			return null;
+
+		return strategies.computeIfAbsent(annotation.value(), c -> {
+			try {
+				return (PartitioningStrategy)c.newInstance();
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot instantiate partitioning strategy " + c.getName(), e);
+			}
+		});
+	}
+
+	/**
+	 * Cached provider-specific storage (map, cache, etc.) handle
+	 * @return the handle or null if not cached yet
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getStorageHandle() {
+		return (T)storageHandle;
+	}
+
+	public void setStorageHandle(Object storageHandle) {
+		this.storageHandle = storageHandle;
+	}
+
+	/**
+	 * Cached provider-specific ID generator handle
+	 * @return the handle or null if not cached yet
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getIdGeneratorHandle() {
+		return (T)idGeneratorHandle;
+	}
+
+	public void setIdGeneratorHandle(Object idGeneratorHandle) {
+		this.idGeneratorHandle = idGeneratorHandle;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
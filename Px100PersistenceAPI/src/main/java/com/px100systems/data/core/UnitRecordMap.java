@@ -0,0 +1,124 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.data.core;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import com.px100systems.util.LongMap;
+
+/**
+ * Record map keyed by (unit, ID) w/o composite string keys: one primitive {@link LongMap} per unit,
+ * found by the interned unit's local ID (see {@link UnitDescriptor#getLocalId()}) in a plain array.
+ * Units are registered as records are added (records only come from existing units).<br>
+ * Used to coalesce large numbers of records e.g. in write-behind. Null values are not supported. Not thread-safe.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class UnitRecordMap<V> {
+	private LongMap<V>[] units = newArray(16);
+	private String[] unitNames = new String[16];
+	private int size = 0;
+
+	@SuppressWarnings("unchecked")
+	private static <V> LongMap<V>[] newArray(int length) {
+		return (LongMap<V>[])new LongMap[length];
+	}
+
+	private LongMap<V> unit(String unitName, boolean create) {
+		int i = (create ? UnitDescriptor.register(unitName) : UnitDescriptor.get(unitName)).getLocalId();
+		if (i < 0)
+			return null;
+		if (i >= units.length) {
+			if (!create)
+				return null;
+			int length = Math.max(i + 1, units.length * 2);
+			units = Arrays.copyOf(units, length);
+			unitNames = Arrays.copyOf(unitNames, length);
+		}
+
+		LongMap<V> result = units[i];
+		if (result == null && create) {
+			result = units[i] = new LongMap<V>();
+			unitNames[i] = unitName;
+		}
+		return result;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(String unitName, long id) {
+		LongMap<V> unit = unit(unitName, false);
+		return unit != null && unit.containsKey(id);
+	}
+
+	public V get(String unitName, long id) {
+		LongMap<V> unit = unit(unitName, false);
+		return unit == null ? null : unit.get(id);
+	}
+
+	/**
+	 * Put a value
+	 * @param unitName unit name
+	 * @param id record ID
+	 * @param value non-null value
+	 * @return the previous value or null
+	 */
+	public V put(String unitName, long id, V value) {
+		V result = unit(unitName, true).put(id, value);
+		if (result == null)
+			size++;
+		return result;
+	}
+
+	/**
+	 * Remove a value
+	 * @param unitName unit name
+	 * @param id record ID
+	 * @return the removed value or null
+	 */
+	public V remove(String unitName, long id) {
+		LongMap<V> unit = unit(unitName, false);
+		V result = unit == null ? null : unit.remove(id);
+		if (result != null)
+			size--;
+		return result;
+	}
+
+	public void forEachValue(Consumer<? super V> consumer) {
+		for (LongMap<V> unit : units)
+			if (unit != null)
+				unit.forEachValue(consumer);
+	}
+
+	/**
+	 * Visit non-empty units
+	 * @param consumer unit name and its records
+	 */
+	public void forEachUnit(BiConsumer<String, LongMap<V>> consumer) {
+		for (int i = 0; i < units.length; i++)
+			if (units[i] != null && !units[i].isEmpty())
+				consumer.accept(unitNames[i], units[i]);
+	}
+}
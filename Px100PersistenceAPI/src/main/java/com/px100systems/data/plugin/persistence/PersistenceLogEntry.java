@@ -60,6 +60,7 @@ public class PersistenceLogEntry extends StoredBean implements Externalizable {
 	public static class PersistenceLogRecord {
 		private String unitName;
 		private Long id;
+		private byte[] payload;
 
 		@SuppressWarnings("unused")
 		public PersistenceLogRecord() {
@@ -70,6 +71,12 @@ public class PersistenceLogEntry extends StoredBean implements Externalizable {
 			this.id = id;
 		}
 
+		public PersistenceLogRecord(String unitName, Long id, byte[] payload) {
+			this.unitName = unitName;
+			this.id = id;
+			this.payload = payload;
+		}
+
 		public String getUnitName() {
 			return unitName;
 		}
@@ -86,6 +93,19 @@ public class PersistenceLogEntry extends StoredBean implements Externalizable {
 		public void setId(Long id) {
 			this.id = id;
 		}
+
+		/**
+		 * Optional compact serialized entity (see {@link SerializationDefinition#toBytes}) as of this transaction:
+		 * persisters don't need to re-read it from the grid.
+		 * @return serialized entity or null
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public void setPayload(byte[] payload) {
+			this.payload = payload;
+		}
 	}
 
 	@Override
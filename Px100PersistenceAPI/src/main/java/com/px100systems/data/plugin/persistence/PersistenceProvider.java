@@ -87,6 +87,16 @@ public interface PersistenceProvider {
 	 * @throws PersistenceProviderException
 	 */
 	void loadByStorage(String storageName, LoadCallback callback) throws PersistenceProviderException;
+
+	/**
+	 * Loads specific records of one unit in bulk. Used by persisters catching up from a peer's database.
+	 *
+	 * @param unitName unit name
+	 * @param ids record IDs
+	 * @param callback how to process loaded records. Missing (deleted) records are skipped.
+	 * @throws PersistenceProviderException
+	 */
+	void loadRecords(String unitName, Collection<Long> ids, LoadCallback callback) throws PersistenceProviderException;
 	
 	/**
 	 * Returns max Ids per ID generator.
@@ -17,6 +17,7 @@
 package com.px100systems.data.plugin.storage;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -90,6 +91,16 @@ public interface InMemoryStorageProvider {
 	 */
 	<T> T get(String unitName, Long id);
 
+	/**
+	 * Get several persisted entries in one round trip
+	 *
+	 * @param unitName unit name
+	 * @param ids PKs
+	 * @param <T> the class
+	 * @return found beans by ID (missing ones are omitted)
+	 */
+	<T> Map<Long, T> getAll(String unitName, Collection<Long> ids);
+
 	/**
 	 * Get any bean by its key: used for transient data.
 	 *
@@ -205,6 +216,24 @@ public interface InMemoryStorageProvider {
 	 * @return the next ID
 	 */
 	long generateId(String unitName);
+
+	/**
+	 * Reserves a block of incremental IDs in one round trip (bulk imports).
+	 * If the generator wasn't created, creates it.
+	 *
+	 * @param unitName unit name
+	 * @param count block size
+	 * @return the last ID of the block: the block is [result - count + 1 .. result]
+	 */
+	long generateIds(String unitName, int count);
+
+	/**
+	 * The last generated ID w/o generating a new one: the head of sequence-numbered units like the persistence log.
+	 *
+	 * @param unitName unit name
+	 * @return the last generated ID or 0 if none were generated
+	 */
+	long getLastId(String unitName);
 	
 	/**
 	 * Request a cluster-wide lock.
@@ -247,6 +276,16 @@ public interface InMemoryStorageProvider {
 	 */
 	long decrementAtomicLong(String name, Integer tenantId);
 
+	/**
+	 * Atomically set long if it still has the expected value
+	 * @param name name
+	 * @param tenantId tenant ID
+	 * @param expect expected value
+	 * @param update new value
+	 * @return true if set
+	 */
+	boolean compareAndSetAtomicLong(String name, Integer tenantId, long expect, long update);
+
 	/**
 	 * Creates the appropriately serializable PersistenceLogEntry
 	 * @return the PersistenceLogEntry instance
@@ -0,0 +1,87 @@
+package com.px100systems.data.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * In-place update batching
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class InPlaceUpdateTest extends TestCase {
+	public static class EntityA extends Entity {
+	}
+
+	public static class EntityB extends Entity {
+	}
+
+	private static final EntityProcessor<EntityA> processor1 = bean -> {};
+	private static final EntityProcessor<EntityA> processor2 = bean -> {};
+	private static final EntityProcessor<EntityB> processorB = bean -> {};
+
+	private int orderNo = 0;
+
+	public InPlaceUpdateTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(InPlaceUpdateTest.class);
+	}
+
+	private InPlaceUpdate<?> byId(long id, EntityProcessor<EntityA> processor) {
+		return new InPlaceUpdate<>(orderNo++, EntityA.class, id, 0, processor);
+	}
+
+	private InPlaceUpdate<?> byCriteria(EntityProcessor<EntityA> processor) {
+		return new InPlaceUpdate<>(orderNo++, EntityA.class, 0, Criteria.eq("id", 1L), processor);
+	}
+
+	private static List<List<Integer>> orderNumbers(List<List<InPlaceUpdate<?>>> batches) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<InPlaceUpdate<?>> batch : batches) {
+			List<Integer> numbers = new ArrayList<>();
+			for (InPlaceUpdate<?> u : batch)
+				numbers.add(u.getOperationOrderNo());
+			result.add(numbers);
+		}
+		return result;
+	}
+
+	public void testSameProcessorAndUnit() {
+		List<InPlaceUpdate<?>> updates = Arrays.asList(byId(1, processor1), byId(2, processor1), byId(3, processor1));
+		assertEquals(Arrays.asList(Arrays.asList(0, 1, 2)), orderNumbers(InPlaceUpdate.batches(updates)));
+	}
+
+	public void testProcessorAndUnitChanges() {
+		List<InPlaceUpdate<?>> updates = Arrays.asList(
+			byId(1, processor1),
+			byId(2, processor2),
+			byId(3, processor2),
+			new InPlaceUpdate<>(orderNo++, EntityB.class, 4L, 0, processorB),
+			new InPlaceUpdate<>(orderNo++, EntityA.class, 5L, 1, processor2),
+			byId(6, processor2));
+		assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1, 2), Arrays.asList(3), Arrays.asList(4), Arrays.asList(5)),
+			orderNumbers(InPlaceUpdate.batches(updates)));
+	}
+
+	public void testRepeatedId() {
+		List<InPlaceUpdate<?>> updates = Arrays.asList(byId(1, processor1), byId(2, processor1), byId(1, processor1), byId(3, processor1), byId(2, processor1));
+		assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2, 3, 4)), orderNumbers(InPlaceUpdate.batches(updates)));
+	}
+
+	public void testCriteria() {
+		List<InPlaceUpdate<?>> updates = Arrays.asList(byId(1, processor1), byCriteria(processor1), byCriteria(processor1), byId(2, processor1), byId(3, processor1));
+		assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1), Arrays.asList(2), Arrays.asList(3, 4)),
+			orderNumbers(InPlaceUpdate.batches(updates)));
+	}
+
+	public void testEmpty() {
+		assertTrue(InPlaceUpdate.batches(new ArrayList<>()).isEmpty());
+	}
+}
@@ -0,0 +1,81 @@
+package com.px100systems.data.core;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit descriptor interning: only known units are cached
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class UnitDescriptorTest extends TestCase {
+	public static class TestEntity extends Entity {
+	}
+
+	public UnitDescriptorTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(UnitDescriptorTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		UnitDescriptor.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		UnitDescriptor.clear();
+	}
+
+	public void testUnknownName() {
+		UnitDescriptor unit = UnitDescriptor.get("unknownUnit");
+		assertEquals("unknownUnit", unit.getName());
+		assertEquals(-1, unit.getLocalId());
+		assertNotSame(unit, UnitDescriptor.get("unknownUnit"));
+	}
+
+	public void testRegister() {
+		UnitDescriptor unit = UnitDescriptor.register("serviceUnit");
+		assertTrue(unit.getLocalId() >= 0);
+		assertSame(unit, UnitDescriptor.register("serviceUnit"));
+		assertSame(unit, UnitDescriptor.get("serviceUnit"));
+	}
+
+	public void testEntityUnits() {
+		UnitDescriptor unit = UnitDescriptor.get(TestEntity.class, 1);
+		assertTrue(unit.getLocalId() >= 0);
+		assertSame(unit, UnitDescriptor.get(TestEntity.class, 1));
+		assertSame(unit, UnitDescriptor.get(unit.getName()));
+
+		UnitDescriptor.setEntityResolver(name -> "TestEntity".equals(name) ? TestEntity.class : null);
+		UnitDescriptor other = UnitDescriptor.get(Entity.unitFromClass(TestEntity.class, 2));
+		assertSame(other, UnitDescriptor.get(TestEntity.class, 2));
+		assertTrue(other.getLocalId() >= 0);
+	}
+
+	public void testRemoveTenant() {
+		UnitDescriptor unit1 = UnitDescriptor.get(TestEntity.class, 1);
+		UnitDescriptor unit2 = UnitDescriptor.get(TestEntity.class, 2);
+		UnitDescriptor service = UnitDescriptor.register("serviceUnit");
+
+		UnitDescriptor.removeTenant(1);
+		assertNotSame(unit1, UnitDescriptor.get(TestEntity.class, 1));
+		assertSame(unit2, UnitDescriptor.get(TestEntity.class, 2));
+		assertSame(service, UnitDescriptor.get("serviceUnit"));
+	}
+
+	public void testClear() {
+		UnitDescriptor unit = UnitDescriptor.get(TestEntity.class, 1);
+		UnitDescriptor service = UnitDescriptor.register("serviceUnit");
+
+		UnitDescriptor.clear();
+		assertNotSame(unit, UnitDescriptor.get(TestEntity.class, 1));
+		assertEquals(-1, UnitDescriptor.get("serviceUnit").getLocalId());
+		assertNotSame(service, UnitDescriptor.register("serviceUnit"));
+	}
+}
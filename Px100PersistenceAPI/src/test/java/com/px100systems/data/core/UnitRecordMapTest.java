@@ -0,0 +1,104 @@
+package com.px100systems.data.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Record map keyed by (unit, ID)
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class UnitRecordMapTest extends TestCase {
+	public UnitRecordMapTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(UnitRecordMapTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		UnitDescriptor.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		UnitDescriptor.clear();
+	}
+
+	public void testUnits() {
+		UnitRecordMap<String> map = new UnitRecordMap<>();
+		assertNull(map.put("unitA", 1, "a1"));
+		assertNull(map.put("unitB", 1, "b1"));
+		assertEquals("a1", map.put("unitA", 1, "a1x"));
+		assertEquals(2, map.size());
+
+		assertEquals("a1x", map.get("unitA", 1));
+		assertEquals("b1", map.get("unitB", 1));
+		assertTrue(map.containsKey("unitB", 1));
+		assertFalse(map.containsKey("unitB", 2));
+
+		assertNull(map.remove("unitB", 2));
+		assertEquals("b1", map.remove("unitB", 1));
+		assertEquals(1, map.size());
+
+		Map<String, Integer> units = new HashMap<>();
+		map.forEachUnit((unitName, records) -> units.put(unitName, records.size()));
+		assertEquals(1, units.size());
+		assertEquals(Integer.valueOf(1), units.get("unitA"));
+	}
+
+	public void testUnknownUnit() {
+		UnitRecordMap<String> map = new UnitRecordMap<>();
+		map.put("unitA", 1, "a1");
+
+		assertNull(map.get("unitC", 1));
+		assertFalse(map.containsKey("unitC", 1));
+		assertNull(map.remove("unitC", 1));
+		assertEquals(-1, UnitDescriptor.get("unitC").getLocalId());
+		assertEquals(1, map.size());
+	}
+
+	public void testManyUnits() {
+		UnitRecordMap<String> map = new UnitRecordMap<>();
+		for (int u = 0; u < 100; u++)
+			for (long id = 0; id < 20; id++)
+				map.put("unit" + u, id, u + "-" + id);
+		assertEquals(2000, map.size());
+
+		for (int u = 0; u < 100; u++)
+			for (long id = 0; id < 20; id++)
+				assertEquals(u + "-" + id, map.get("unit" + u, id));
+
+		List<String> values = new ArrayList<>();
+		map.forEachValue(values::add);
+		assertEquals(2000, values.size());
+	}
+
+	public void testChurn() {
+		UnitRecordMap<String> map = new UnitRecordMap<>();
+		Map<String, String> expected = new HashMap<>();
+		Random random = new Random(100);
+		for (int i = 0; i < 50000; i++) {
+			String unitName = "unit" + random.nextInt(5);
+			long id = random.nextInt(200);
+			if (random.nextInt(3) == 0)
+				assertEquals(expected.remove(unitName + "/" + id), map.remove(unitName, id));
+			else
+				assertEquals(expected.put(unitName + "/" + id, "v" + i), map.put(unitName, id, "v" + i));
+		}
+		assertEquals(expected.size(), map.size());
+
+		Map<String, String> visited = new HashMap<>();
+		map.forEachUnit((unitName, records) -> records.forEach((id, value) -> assertNull(visited.put(unitName + "/" + id, value))));
+		assertEquals(expected, visited);
+	}
+}
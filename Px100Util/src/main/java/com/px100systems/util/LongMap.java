@@ -0,0 +1,192 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.util;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Open-addressing (linear probing) hash map with primitive long keys: no key boxing or entry objects.<br>
+ * Removal shifts subsequent entries back instead of leaving tombstones, so heavy put/remove churn doesn't degrade lookups.<br>
+ * Null values are not supported (null means an empty slot). Not thread-safe.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class LongMap<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int resizeAt;
+	private int size = 0;
+
+	/**
+	 * Key-value visitor
+	 */
+	public interface Visitor<V> {
+		void visit(long key, V value);
+	}
+
+	public LongMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize expected number of entries to avoid rehashing
+	 */
+	public LongMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity / 4 * 3 < expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeAt = capacity / 4 * 3;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	private int find(long key) {
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		return -1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = find(key);
+		return i < 0 ? null : (V)values[i];
+	}
+
+	/**
+	 * Put a value
+	 * @param key key
+	 * @param value non-null value
+	 * @return the previous value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("Null values are not supported");
+
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key) {
+				V result = (V)values[i];
+				values[i] = value;
+				return result;
+			}
+
+		keys[i] = key;
+		values[i] = value;
+		if (++size > resizeAt)
+			rehash(values.length << 1);
+		return null;
+	}
+
+	/**
+	 * Remove a value
+	 * @param key key
+	 * @return the removed value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int gap = find(key);
+		if (gap < 0)
+			return null;
+
+		V result = (V)values[gap];
+		for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask)
+			if (((i - slot(keys[i])) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+
+		values[gap] = null;
+		size--;
+		return result;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * All keys
+	 * @return keys in no particular order
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int j = 0;
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				result[j++] = keys[i];
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<? super V> visitor) {
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				visitor.visit(keys[i], (V)values[i]);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEachValue(Consumer<? super V> consumer) {
+		for (Object value : values)
+			if (value != null)
+				consumer.accept((V)value);
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++)
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				while (values[j] != null)
+					j = (j + 1) & mask;
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+	}
+}
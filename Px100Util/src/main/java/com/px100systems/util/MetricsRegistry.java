@@ -0,0 +1,54 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.util;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Pluggable metrics registry: adapt it to Micrometer, Dropwizard Metrics, StatsD, etc.<br>
+ * Names are dot-separated (e.g. "px100.persister.records.written"), tags qualify them (e.g. node and storage).<br>
+ * Implementations should be thread-safe and fast: they are called from data processing threads.<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public interface MetricsRegistry {
+	/**
+	 * Register a gauge once: the registry polls it whenever it needs the value.
+	 * @param name metric name
+	 * @param tags tags
+	 * @param value value supplier
+	 */
+	void gauge(String name, Map<String, String> tags, Supplier<Number> value);
+
+	/**
+	 * Increment a counter
+	 * @param name metric name
+	 * @param tags tags
+	 * @param delta increment
+	 */
+	void count(String name, Map<String, String> tags, long delta);
+
+	/**
+	 * Record a duration (timer/histogram sample)
+	 * @param name metric name
+	 * @param tags tags
+	 * @param millis duration in milliseconds
+	 */
+	void record(String name, Map<String, String> tags, long millis);
+}
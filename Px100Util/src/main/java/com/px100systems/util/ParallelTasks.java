@@ -0,0 +1,164 @@
+/*
+ * This file is part of Px100 Data.
+ *
+ * Px100 Data is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.px100systems.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded parallel execution of many small independent tasks (e.g. creating thousands of storage units at startup)
+ * with progress logging and basic metrics.<br>
+ * The first failure cancels the rest and is rethrown (wrapped into RuntimeException if checked).<br>
+ *
+ * @version 0.3 <br>Copyright (c) 2015 Px100 Systems. All Rights Reserved.<br>
+ * @author Alex Rogachevsky
+ */
+public class ParallelTasks {
+	private static Log log = LogFactory.getLog(ParallelTasks.class);
+
+	private static final long PROGRESS_INTERVAL_MILLIS = 5000L;
+
+	/**
+	 * Execution metrics of one run
+	 */
+	public static class Stats {
+		private String name;
+		private int count;
+		private int threads;
+		private long millis;
+		private long slowestMillis = 0;
+		private String slowestItem = null;
+
+		public Stats(String name, int count, int threads) {
+			this.name = name;
+			this.count = count;
+			this.threads = threads;
+		}
+
+		private synchronized void taskFinished(Object item, long taskMillis) {
+			if (taskMillis > slowestMillis) {
+				slowestMillis = taskMillis;
+				slowestItem = String.valueOf(item);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public long getSlowestMillis() {
+			return slowestMillis;
+		}
+
+		public String getSlowestItem() {
+			return slowestItem;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + count + " in " + millis + " ms using " + threads + " thread(s)" +
+				(slowestItem != null ? ", slowest " + slowestMillis + " ms (" + slowestItem + ")" : "");
+		}
+	}
+
+	/**
+	 * Run the task for every item using up to the specified number of threads (1 or less - sequentially in the caller's thread).
+	 * @param name what's being done - for logging
+	 * @param items items
+	 * @param threads max. threads
+	 * @param task the task
+	 * @param <T> item type
+	 * @return execution metrics
+	 */
+	public static <T> Stats run(String name, Collection<T> items, int threads, VoidOneArgLambda<T> task) {
+		threads = Math.max(1, Math.min(threads, items.size()));
+		Stats stats = new Stats(name, items.size(), threads);
+		long start = System.currentTimeMillis();
+		AtomicInteger done = new AtomicInteger();
+		AtomicLong lastProgress = new AtomicLong(start);
+
+		if (threads == 1)
+			for (T item : items)
+				execute(item, task, stats, done, lastProgress);
+		else {
+			AtomicInteger threadCount = new AtomicInteger();
+			ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "px100-parallel-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (T item : items)
+					futures.add(executor.submit(() -> execute(item, task, stats, done, lastProgress)));
+
+				for (Future<?> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if (cause instanceof Error)
+					throw (Error)cause;
+				throw new RuntimeException(cause);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		stats.millis = System.currentTimeMillis() - start;
+		log.info(stats);
+		return stats;
+	}
+
+	private static <T> void execute(T item, VoidOneArgLambda<T> task, Stats stats, AtomicInteger done, AtomicLong lastProgress) {
+		long start = System.currentTimeMillis();
+		task.invoke(item);
+		long now = System.currentTimeMillis();
+		stats.taskFinished(item, now - start);
+
+		int count = done.incrementAndGet();
+		long last = lastProgress.get();
+		if (now - last >= PROGRESS_INTERVAL_MILLIS && lastProgress.compareAndSet(last, now))
+			log.info(stats.name + ": " + count + " of " + stats.count + " done");
+	}
+}
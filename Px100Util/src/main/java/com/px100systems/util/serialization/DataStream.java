@@ -73,6 +73,19 @@ public class DataStream {
 		}
 	}
 
+	public void writeByteArray(byte[] data) {
+		try {
+			if (data == null)
+				dos.writeInt(NULL);
+			else {
+				dos.writeInt(data.length);
+				dos.write(data);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void writeInteger(Integer data) {
 		try {
 			if (data == null)
@@ -156,6 +169,20 @@ public class DataStream {
 		}
 	}
 
+	public byte[] readByteArray() {
+		try {
+			int size = dis.readInt();
+			if (size == NULL)
+				return null;
+
+			byte[] buffer = new byte[size];
+			dis.readFully(buffer);
+			return buffer;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public Integer readInteger() {
 		try {
 			int size = dis.readInt();
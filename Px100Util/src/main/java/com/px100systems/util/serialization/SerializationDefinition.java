@@ -247,7 +247,8 @@ public class SerializationDefinition {
 					!fd.type.equals(Double.class) &&
 					!fd.type.equals(Boolean.class) &&
 					!fd.type.equals(Date.class) &&
-					!fd.type.equals(String.class))
+					!fd.type.equals(String.class) &&
+					!fd.type.equals(byte[].class))
 					if (fd.type.equals(List.class) || fd.type.equals(Set.class)) {
 						SerializedCollection sc = field.getAnnotation(SerializedCollection.class);
 						if (sc == null)
@@ -416,6 +417,8 @@ public class SerializationDefinition {
 			stream.writeDate((Date)value);
 		else if (type.equals(String.class))
 			stream.writeString((String) value);
+		else if (type.equals(byte[].class))
+			stream.writeByteArray((byte[])value);
 		else {
 			if (value == null)
 				stream.writeInteger(null);
@@ -453,6 +456,8 @@ public class SerializationDefinition {
 				writer.writeDate(fd.name, (Date)value);
 			else if (fd.type.equals(String.class))
 				writer.writeString(fd.name, (String) value);
+			else if (fd.type.equals(byte[].class))
+				writer.writeBytes(fd.name, (byte[])value);
 			else if (fd.collectionType != null) {
 				if (value == null)
 					writer.writeBytes(fd.name, null);
@@ -640,6 +645,8 @@ public class SerializationDefinition {
 			return stream.readDate();
 		if (type.equals(String.class))
 			return stream.readString();
+		if (type.equals(byte[].class))
+			return stream.readByteArray();
 		else {
 			DataStream newStream = stream.readBytes();
 			if (newStream == null)
@@ -678,6 +685,8 @@ public class SerializationDefinition {
 				invokeMethod(fd.mutator, bean, reader.readDate(fd.name));
 			else if (fd.type.equals(String.class))
 				invokeMethod(fd.mutator, bean, reader.readString(fd.name));
+			else if (fd.type.equals(byte[].class))
+				invokeMethod(fd.mutator, bean, reader.readBytes(fd.name));
 			else if (fd.collectionType != null) {
 				byte[] data = reader.readBytes(fd.name);
 				Collection<Object> collection = null;
@@ -716,6 +725,39 @@ public class SerializationDefinition {
 		}
 	}
 
+	/**
+	 * Compact binary form of the bean
+	 * @param bean bean
+	 * @return serialized bean
+	 */
+	public byte[] toBytes(Object bean) {
+		DataStream ds = new DataStream();
+		try {
+			write(ds, bean);
+			return ds.getData();
+		} finally {
+			ds.close();
+		}
+	}
+
+	/**
+	 * Restore the bean from its compact binary form (see {@link #toBytes})
+	 * @param data serialized bean
+	 * @param <T> bean class
+	 * @return the bean
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T fromBytes(byte[] data) {
+		T result = (T)newInstance();
+		DataStream ds = new DataStream(data);
+		try {
+			read(ds, result);
+		} finally {
+			ds.close();
+		}
+		return result;
+	}
+
 	/**
 	 * DataStream-based cloning.
 	 * @param bean bean to clone
@@ -0,0 +1,174 @@
+package com.px100systems.util.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import com.px100systems.util.LongMap;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Open-addressing long map: probe chains, backward-shift removal, and rehashing
+ *
+ * Copyright (c) 2015 Px100 Systems. All Rights Reserved.
+ * @author Alex Rogachevsky
+ */
+public class LongMapTest extends TestCase {
+	private static final int CAPACITY = 16;
+
+	public LongMapTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(LongMapTest.class);
+	}
+
+	/**
+	 * Same hash as LongMap for the default (minimal) capacity
+	 */
+	private static int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & (CAPACITY - 1);
+	}
+
+	private static List<Long> keysInSlot(int slot, int count) {
+		List<Long> result = new ArrayList<>();
+		for (long key = 1; result.size() < count; key++)
+			if (slot(key) == slot)
+				result.add(key);
+		return result;
+	}
+
+	private static void assertContents(Map<Long, String> expected, LongMap<String> map) {
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, String> e : expected.entrySet())
+			assertEquals(e.getValue(), map.get(e.getKey()));
+
+		long[] keys = map.keys();
+		assertEquals(expected.size(), keys.length);
+		for (long key : keys)
+			assertTrue(expected.containsKey(key));
+
+		Map<Long, String> visited = new HashMap<>();
+		map.forEach((key, value) -> assertNull(visited.put(key, value)));
+		assertEquals(expected, visited);
+
+		List<String> values = new ArrayList<>();
+		map.forEachValue(values::add);
+		assertEquals(expected.size(), values.size());
+	}
+
+	public void testCollisions() {
+		LongMap<String> map = new LongMap<>();
+		List<Long> keys = keysInSlot(3, 5);
+		for (Long key : keys)
+			assertNull(map.put(key, "v" + key));
+		for (Long key : keys)
+			assertEquals("v" + key, map.get(key));
+		assertEquals("v" + keys.get(2), map.put(keys.get(2), "x"));
+		assertEquals("x", map.get(keys.get(2)));
+		assertEquals(5, map.size());
+	}
+
+	public void testWraparound() {
+		LongMap<String> map = new LongMap<>();
+		List<Long> last = keysInSlot(CAPACITY - 1, 3);
+		List<Long> first = keysInSlot(0, 2);
+
+		Map<Long, String> expected = new HashMap<>();
+		for (Long key : last)
+			expected.put(key, "v" + key);
+		for (Long key : first)
+			expected.put(key, "v" + key);
+		for (Map.Entry<Long, String> e : expected.entrySet())
+			map.put(e.getKey(), e.getValue());
+		assertContents(expected, map);
+
+		// Removing the chain head at the last slot must pull the wrapped entries back across the array boundary
+		map.remove(last.get(0));
+		expected.remove(last.get(0));
+		assertContents(expected, map);
+		map.remove(first.get(0));
+		expected.remove(first.get(0));
+		assertContents(expected, map);
+	}
+
+	public void testRemoveInProbeChain() {
+		LongMap<String> map = new LongMap<>();
+		List<Long> chain = keysInSlot(5, 4);
+		List<Long> neighbors = keysInSlot(6, 2);
+
+		Map<Long, String> expected = new HashMap<>();
+		for (Long key : chain)
+			expected.put(key, "v" + key);
+		for (Long key : neighbors)
+			expected.put(key, "v" + key);
+		for (Long key : chain)
+			map.put(key, "v" + key);
+		for (Long key : neighbors)
+			map.put(key, "v" + key);
+
+		assertEquals("v" + chain.get(1), map.remove(chain.get(1)));
+		expected.remove(chain.get(1));
+		assertNull(map.remove(chain.get(1)));
+		assertContents(expected, map);
+
+		assertEquals("v" + chain.get(0), map.remove(chain.get(0)));
+		expected.remove(chain.get(0));
+		assertContents(expected, map);
+
+		assertEquals("v" + neighbors.get(0), map.remove(neighbors.get(0)));
+		expected.remove(neighbors.get(0));
+		assertContents(expected, map);
+
+		map.put(chain.get(1), "back");
+		expected.put(chain.get(1), "back");
+		assertContents(expected, map);
+	}
+
+	public void testRehash() {
+		LongMap<String> map = new LongMap<>();
+		Map<Long, String> expected = new HashMap<>();
+		for (long key = -500; key < 500; key++) {
+			map.put(key * 31, "v" + key);
+			expected.put(key * 31, "v" + key);
+		}
+		assertContents(expected, map);
+
+		LongMap<String> presized = new LongMap<>(1000);
+		for (Map.Entry<Long, String> e : expected.entrySet())
+			presized.put(e.getKey(), e.getValue());
+		assertContents(expected, presized);
+	}
+
+	public void testChurn() {
+		LongMap<String> map = new LongMap<>();
+		Map<Long, String> expected = new HashMap<>();
+		Random random = new Random(100);
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(300);
+			if (random.nextInt(3) == 0)
+				assertEquals(expected.remove(key), map.remove(key));
+			else
+				assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+		}
+		assertContents(expected, map);
+
+		for (Long key : new ArrayList<>(expected.keySet()))
+			assertEquals(expected.remove(key), map.remove(key));
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.keys().length);
+	}
+
+	public void testNullValue() {
+		try {
+			new LongMap<String>().put(1, null);
+			fail("Null values are not supported");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+}